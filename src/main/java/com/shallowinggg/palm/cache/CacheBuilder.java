@@ -4,7 +4,19 @@ import com.shallowinggg.palm.reflect.TypeReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import static com.shallowinggg.palm.PreConditions.*;
@@ -12,6 +24,7 @@ import static com.shallowinggg.palm.cache.MultiDimensionCache.*;
 
 public class CacheBuilder<V> {
     private static final int DEFAULT_INITIAL_CAPACITY = 16;
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 1;
     private static final int DEFAULT_EXPIRATION_NANOS = 0;
     private static final int DEFAULT_REFRESH_NANOS = 0;
     private static final int DEFAULT_CLEAR_EXPIRE_THRESHOLD = 1000;
@@ -52,6 +65,7 @@ public class CacheBuilder<V> {
     private static final int UNSET_INT = -1;
 
     private int initialCapacity = UNSET_INT;
+    private int concurrencyLevel = UNSET_INT;
     private int clearExpireThreshold = UNSET_INT;
     private Strength strength;
 
@@ -59,8 +73,30 @@ public class CacheBuilder<V> {
     private long expireAfterAccessNanos = UNSET_INT;
     private long refreshNanos = UNSET_INT;
 
+    private Executor refreshExecutor;
+
+    private Executor notificationExecutor;
+
+    private ForkJoinPool forkJoinPool;
+
+    private int loadParallelism = UNSET_INT;
+
+    private int resultCacheSize = UNSET_INT;
+
+    private Set<String> indexFields;
+    private boolean indexAllFields = false;
+    private Set<String> sortedFields;
+    private List<String[]> compositeIndexes;
+    private Map<String, Boolean> prefixIndexes;
+    private Map<String, Function<?, ?>> derivedIndexes;
+
     private boolean strict = false;
 
+    private String identityField;
+    private String uniqueField;
+
+    private boolean reloadByDiff = false;
+
     private Supplier<? extends StatsCounter> statsCounterSupplier = NULL_STATS_COUNTER;
 
     private CacheBuilder() {}
@@ -83,6 +119,186 @@ public class CacheBuilder<V> {
         return (initialCapacity == UNSET_INT) ? DEFAULT_INITIAL_CAPACITY : initialCapacity;
     }
 
+    /**
+     * 设置分段数。缓存值被划分为多个分段，每个分段拥有独立的字段映射，
+     * 加载、构建映射以及结果较多的查询按分段并行执行。默认为1，即不分段。
+     *
+     * @param concurrencyLevel 分段数
+     * @return this
+     */
+    public CacheBuilder<V> concurrencyLevel(int concurrencyLevel) {
+        checkState(
+                this.concurrencyLevel == UNSET_INT,
+                "concurrency level was already set to %s",
+                this.concurrencyLevel);
+        checkArgument(concurrencyLevel > 0);
+        this.concurrencyLevel = concurrencyLevel;
+        return this;
+    }
+
+    int getConcurrencyLevel() {
+        return (concurrencyLevel == UNSET_INT) ? DEFAULT_CONCURRENCY_LEVEL : concurrencyLevel;
+    }
+
+    /**
+     * 设置执行并行加载、构建映射以及查询的线程池，默认为{@link ForkJoinPool#commonPool()}
+     *
+     * @param pool 线程池
+     * @return this
+     */
+    public CacheBuilder<V> forkJoinPool(ForkJoinPool pool) {
+        checkState(forkJoinPool == null, "fork join pool was already set to %s", forkJoinPool);
+        this.forkJoinPool = checkNotNull(pool);
+        return this;
+    }
+
+    ForkJoinPool getForkJoinPool() {
+        return (forkJoinPool == null) ? ForkJoinPool.commonPool() : forkJoinPool;
+    }
+
+    /**
+     * 声明需要预先构建映射的字段。这些字段的映射在构建缓存以及每次全量刷新时在
+     * {@link #forkJoinPool(ForkJoinPool)}中并行构建，构建完成后才对查询可见。
+     *
+     * @param fields 字段名称
+     * @return this
+     */
+    public CacheBuilder<V> indexFields(String... fields) {
+        if (indexFields == null) {
+            indexFields = new LinkedHashSet<>();
+        }
+        for (String field : fields) {
+            indexFields.add(checkNotNull(field));
+        }
+        return this;
+    }
+
+    /**
+     * 预先构建所有具有getter方法的字段的映射，参见{@link #indexFields(String...)}
+     *
+     * @return this
+     */
+    public CacheBuilder<V> indexAllFields() {
+        this.indexAllFields = true;
+        return this;
+    }
+
+    Set<String> getIndexFields() {
+        return (indexFields == null) ? Collections.emptySet() : indexFields;
+    }
+
+    boolean isIndexAllFields() {
+        return indexAllFields;
+    }
+
+    /**
+     * 声明使用有序映射的字段，字段类型必须为基本类型或者实现{@link Comparable}。
+     * 有序字段除了等值查询外还支持范围查询以及最小最大值，参见
+     * {@link MultiDimensionCache#getRangeValues(String, Object, boolean, Object, boolean)}。
+     *
+     * @param fields 字段名称
+     * @return this
+     */
+    public CacheBuilder<V> sortedFields(String... fields) {
+        if (sortedFields == null) {
+            sortedFields = new LinkedHashSet<>();
+        }
+        for (String field : fields) {
+            sortedFields.add(checkNotNull(field));
+        }
+        return this;
+    }
+
+    Set<String> getSortedFields() {
+        return (sortedFields == null) ? Collections.emptySet() : sortedFields;
+    }
+
+    /**
+     * 声明组合索引，以多个字段值组成的元组为键。组合索引在构建缓存以及每次全量刷新时预先构建，
+     * 之后随写入同步维护。{@link MultiDimensionCache#getMappingValues(java.util.Map)}的条件
+     * 覆盖组合索引的全部字段时，只需一次哈希查找。
+     *
+     * @param fields 字段名称，至少两个
+     * @return this
+     */
+    public CacheBuilder<V> compositeIndex(String... fields) {
+        checkArgument(fields.length >= 2, "composite index requires at least two fields");
+        Set<String> names = new LinkedHashSet<>();
+        for (String field : fields) {
+            checkArgument(names.add(checkNotNull(field)), "duplicate field %s", field);
+        }
+        if (compositeIndexes == null) {
+            compositeIndexes = new ArrayList<>();
+        }
+        compositeIndexes.add(names.toArray(new String[0]));
+        return this;
+    }
+
+    List<String[]> getCompositeIndexes() {
+        return (compositeIndexes == null) ? Collections.emptyList() : compositeIndexes;
+    }
+
+    /**
+     * 为String字段声明前缀索引，区分大小写
+     *
+     * @param field 字段名称
+     * @return this
+     * @see #prefixIndex(String, boolean)
+     */
+    public CacheBuilder<V> prefixIndex(String field) {
+        return prefixIndex(field, false);
+    }
+
+    /**
+     * 为String字段声明前缀索引。前缀索引为按照字段值排序的映射，以相同前缀开头的字段值连续排列，
+     * 在构建缓存以及每次全量刷新时预先构建，之后随写入同步维护。参见
+     * {@link MultiDimensionCache#getPrefixValues(String, String, int)}。
+     *
+     * @param field      字段名称
+     * @param ignoreCase 是否忽略大小写
+     * @return this
+     */
+    public CacheBuilder<V> prefixIndex(String field, boolean ignoreCase) {
+        if (prefixIndexes == null) {
+            prefixIndexes = new LinkedHashMap<>();
+        }
+        checkState(!prefixIndexes.containsKey(checkNotNull(field)), "prefix index of %s was already declared", field);
+        prefixIndexes.put(field, ignoreCase);
+        return this;
+    }
+
+    Map<String, Boolean> getPrefixIndexes() {
+        return (prefixIndexes == null) ? Collections.emptyMap() : prefixIndexes;
+    }
+
+    /**
+     * 声明派生索引，以extractor计算的值为键，通过名称查询，例如
+     * {@code derivedIndex("lowerEmail", (User u) -> u.getEmail().toLowerCase())}。
+     * 派生索引在构建缓存以及每次全量刷新时预先构建，之后随写入同步维护，
+     * 可以像字段一样用于{@link MultiDimensionCache#getMappingValues(String, Object...)}等查询。
+     *
+     * @param name      索引名称，不能与字段名称相同，不能包含':'或者','
+     * @param extractor 计算键的函数，必须是无副作用的，可能被多个线程同时调用
+     * @return this
+     */
+    public <V1 extends V> CacheBuilder<V1> derivedIndex(String name, Function<? super V1, ?> extractor) {
+        checkNotNull(name);
+        checkNotNull(extractor);
+        checkArgument(name.indexOf(':') < 0 && name.indexOf(',') < 0, "illegal index name %s", name);
+        if (derivedIndexes == null) {
+            derivedIndexes = new LinkedHashMap<>();
+        }
+        checkState(!derivedIndexes.containsKey(name), "derived index %s was already declared", name);
+        derivedIndexes.put(name, extractor);
+        @SuppressWarnings("unchecked")
+        CacheBuilder<V1> me = (CacheBuilder<V1>) this;
+        return me;
+    }
+
+    Map<String, Function<?, ?>> getDerivedIndexes() {
+        return (derivedIndexes == null) ? Collections.emptyMap() : derivedIndexes;
+    }
+
     CacheBuilder<V> strength(Strength strength) {
         checkState(this.strength == null, "Strength was already set to %s", strength);
         this.strength = checkNotNull(strength);
@@ -165,6 +381,98 @@ public class CacheBuilder<V> {
         return (refreshNanos == UNSET_INT) ? DEFAULT_REFRESH_NANOS : refreshNanos;
     }
 
+    /**
+     * 设置执行刷新加载的执行器。定时刷新以及{@link MultiDimensionCache#refreshAsync()}都在此执行器中进行，
+     * 默认使用所有缓存共享的守护线程池，每次加载占用一个线程。
+     *
+     * @param executor 刷新执行器
+     * @return this
+     */
+    public CacheBuilder<V> refreshExecutor(Executor executor) {
+        checkState(refreshExecutor == null, "refresh executor was already set to %s", refreshExecutor);
+        this.refreshExecutor = checkNotNull(executor);
+        return this;
+    }
+
+    /**
+     * 设置通知订阅者的执行器，参见{@link MultiDimensionCache#subscribe(String, Object, java.util.function.Consumer)}。
+     * 默认为{@link ForkJoinPool#commonPool()}。
+     *
+     * @param executor 执行器
+     * @return this
+     */
+    public CacheBuilder<V> notificationExecutor(Executor executor) {
+        checkState(notificationExecutor == null,
+                "notification executor was already set to %s", notificationExecutor);
+        this.notificationExecutor = checkNotNull(executor);
+        return this;
+    }
+
+    Executor getNotificationExecutor() {
+        return (notificationExecutor == null) ? ForkJoinPool.commonPool() : notificationExecutor;
+    }
+
+    /**
+     * 设置分区加载时同时加载的最大分区数，参见{@link CacheLoader#partitions()}。
+     * 刷新线程加载一部分分区，其余分区在所有缓存共享的分区加载线程中加载，默认为可用的处理器数。
+     *
+     * @param loadParallelism 最大并行度
+     * @return this
+     */
+    public CacheBuilder<V> loadParallelism(int loadParallelism) {
+        checkState(this.loadParallelism == UNSET_INT,
+                "load parallelism was already set to %s", this.loadParallelism);
+        checkArgument(loadParallelism > 0, "loadParallelism must be positive: %s", loadParallelism);
+        this.loadParallelism = loadParallelism;
+        return this;
+    }
+
+    int getLoadParallelism() {
+        return (loadParallelism == UNSET_INT) ? Runtime.getRuntime().availableProcessors() : loadParallelism;
+    }
+
+    /**
+     * 开启{@link MultiDimensionCache#getMappingValues(String, Object...)}的结果缓存，
+     * 以字段名称以及字段值列表为键保存不可变的结果，重复的查询只需一次哈希查找。
+     * 任何写入或者刷新都会使所有结果失效，结果中的条目过期时对应的结果同样失效。
+     * 注意：结果缓存持有值的强引用，会延迟{@link #weakValues()}以及{@link #softValues()}的回收。
+     *
+     * @param resultCacheSize 最多缓存的结果数
+     * @return this
+     */
+    public CacheBuilder<V> resultCacheSize(int resultCacheSize) {
+        checkState(this.resultCacheSize == UNSET_INT,
+                "result cache size was already set to %s", this.resultCacheSize);
+        checkArgument(resultCacheSize > 0, "resultCacheSize must be positive: %s", resultCacheSize);
+        this.resultCacheSize = resultCacheSize;
+        return this;
+    }
+
+    int getResultCacheSize() {
+        return (resultCacheSize == UNSET_INT) ? 0 : resultCacheSize;
+    }
+
+    /**
+     * 每次刷新加载使用一个新的虚拟线程，需要JDK 21及以上版本
+     *
+     * @return this
+     * @throws UnsupportedOperationException 如果当前JDK不支持虚拟线程
+     */
+    public CacheBuilder<V> virtualThreadRefresh() {
+        Executor executor;
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            executor = (Executor) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21 or later", e);
+        }
+        return refreshExecutor(executor);
+    }
+
+    Executor getRefreshExecutor() {
+        return (refreshExecutor == null) ? DEFAULT_REFRESH_EXECUTOR : refreshExecutor;
+    }
+
     public CacheBuilder<V> strict(boolean strict) {
         this.strict = strict;
         return this;
@@ -174,6 +482,60 @@ public class CacheBuilder<V> {
         return strict;
     }
 
+    /**
+     * 声明标识字段，标识字段的值唯一确定一条缓存值。
+     * 增量刷新以及写入时通过标识字段匹配已有的条目，参见{@link CacheLoader#loadChanges(long)}
+     *
+     * @param field 字段名称
+     * @return this
+     */
+    public CacheBuilder<V> identity(String field) {
+        checkState(identityField == null, "identity was already set to %s", identityField);
+        this.identityField = checkNotNull(field);
+        return this;
+    }
+
+    String getIdentityField() {
+        return identityField;
+    }
+
+    /**
+     * 声明唯一字段，为其构建字段值直接映射到条目的唯一索引，通过{@link MultiDimensionCache#get(Object)}
+     * 查询唯一的值。全量加载时重复的字段值只保留其中一个并记录警告，写入以及增量刷新时
+     * 与其他条目重复的字段值会被拒绝。
+     *
+     * @param field 字段名称
+     * @return this
+     */
+    public CacheBuilder<V> unique(String field) {
+        checkState(uniqueField == null, "unique field was already set to %s", uniqueField);
+        this.uniqueField = checkNotNull(field);
+        return this;
+    }
+
+    String getUniqueField() {
+        return uniqueField;
+    }
+
+    /**
+     * 全量刷新时将加载的数据与当前数据按照{@link #identity(String)}声明的标识字段进行比较，
+     * 保留没有变化的条目以及它们的访问时间，只修改发生变化的条目以及相应的字段映射。
+     * 适用于不支持增量加载并且大部分数据不经常变化的场景。
+     * <p>
+     * 值类型需要重写equals方法，否则无法判断值是否变化，每次刷新都会构建新的一代。
+     * 变化的条目过多时同样构建新的一代。
+     *
+     * @return this
+     */
+    public CacheBuilder<V> reloadByDiff() {
+        this.reloadByDiff = true;
+        return this;
+    }
+
+    boolean isReloadByDiff() {
+        return reloadByDiff;
+    }
+
     public CacheBuilder<V> recordStats() {
         statsCounterSupplier = CACHE_STATS_COUNTER;
         return this;
@@ -0,0 +1,59 @@
+package com.shallowinggg.palm.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import static com.shallowinggg.palm.PreConditions.checkNotNull;
+
+/**
+ * 自某个水位以来缓存值的变化，由{@link CacheLoader#loadChanges(long)}返回。
+ * <p>
+ * 缓存通过{@link CacheBuilder#identity(String)}声明的标识字段匹配已有的条目：
+ * upserts中标识已经存在的值替换原有条目，否则作为新条目加入；removals中的值对应的条目被删除。
+ *
+ * @author shallowinggg
+ */
+public class CacheChanges<V> {
+    private final Collection<V> upserts;
+    private final Collection<V> removals;
+    private final long watermark;
+
+    /**
+     * @param upserts   新增或者更新的值
+     * @param removals  删除的值，只需要标识字段有效
+     * @param watermark 这些变化对应的新水位，下一次增量加载从此水位开始
+     */
+    public CacheChanges(Collection<V> upserts, Collection<V> removals, long watermark) {
+        this.upserts = checkNotNull(upserts);
+        this.removals = checkNotNull(removals);
+        this.watermark = watermark;
+    }
+
+    public static <V> CacheChanges<V> empty(long watermark) {
+        return new CacheChanges<>(Collections.emptyList(), Collections.emptyList(), watermark);
+    }
+
+    public Collection<V> getUpserts() {
+        return upserts;
+    }
+
+    public Collection<V> getRemovals() {
+        return removals;
+    }
+
+    public long getWatermark() {
+        return watermark;
+    }
+
+    public boolean isEmpty() {
+        return upserts.isEmpty() && removals.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "CacheChanges{" +
+                "upserts=" + upserts.size() +
+                ", removals=" + removals.size() +
+                ", watermark=" + watermark + "}";
+    }
+}
@@ -1,6 +1,7 @@
 package com.shallowinggg.palm.cache;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * @author dingshimin
@@ -26,4 +27,80 @@ public abstract class CacheLoader<V> {
     public List<V> reload() throws Exception {
         return load();
     }
+
+    /**
+     * 是否流式加载。返回true时缓存在全量加载时调用{@link #load(Consumer)}以及{@link #reload(Consumer)}
+     * 代替{@link #load()}以及{@link #reload()}，每个缓存值在到达时立即被包装以及索引，
+     * 适用于从数据库游标等来源逐行读取的场景，避免加载期间同时持有完整的中间列表。默认为false。
+     *
+     * @return 是否流式加载
+     */
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * 流式加载缓存值，每读取一个缓存值调用一次consumer，consumer只能在调用线程中使用。
+     *
+     * @param consumer 缓存值的接收者
+     * @throws Exception 如果无法加载
+     */
+    public void load(Consumer<? super V> consumer) throws Exception {
+        throw new UnsupportedOperationException("streaming loading is not supported");
+    }
+
+    /**
+     * 流式重新加载缓存值，默认实现调用{@link #load(Consumer)}。
+     *
+     * @param consumer 缓存值的接收者
+     * @throws Exception 如果无法加载
+     */
+    public void reload(Consumer<? super V> consumer) throws Exception {
+        load(consumer);
+    }
+
+    /**
+     * 返回分区数。分区数大于0时，缓存在全量加载时以有限的并行度并发调用{@link #load(int)}加载
+     * 每个分区，代替{@link #load()}以及{@link #reload()}。默认为0，表示不支持分区加载。
+     *
+     * @return 分区数
+     */
+    public int partitions() {
+        return 0;
+    }
+
+    /**
+     * 加载一个分区的缓存值，可能被多个线程同时调用。
+     *
+     * @param partition 分区下标，从0开始，小于{@link #partitions()}
+     * @return 分区的缓存值
+     * @throws Exception 如果无法加载
+     */
+    public List<V> load(int partition) throws Exception {
+        throw new UnsupportedOperationException("partitioned loading is not supported");
+    }
+
+    /**
+     * 加载自给定水位以来新增、更新以及删除的缓存值，水位可以是版本号或者时间戳。
+     * 只有在{@link CacheBuilder#identity(String)}声明了标识字段时才会调用此方法。
+     * <p>
+     * 默认返回null，表示不支持增量加载，此时缓存调用{@link #reload()}进行全量刷新。
+     *
+     * @param watermark 上一次加载的水位，首次调用时为{@link #watermark()}在全量加载后返回的值
+     * @return 缓存值的变化，不支持增量加载时返回null
+     * @throws Exception 如果无法加载
+     */
+    public CacheChanges<V> loadChanges(long watermark) throws Exception {
+        return null;
+    }
+
+    /**
+     * 返回最近一次{@link #load()}或者{@link #reload()}加载的数据对应的水位，
+     * 在全量加载完成后调用。
+     *
+     * @return 水位
+     */
+    public long watermark() {
+        return 0L;
+    }
 }
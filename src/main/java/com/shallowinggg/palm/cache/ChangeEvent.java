@@ -0,0 +1,64 @@
+package com.shallowinggg.palm.cache;
+
+import java.util.List;
+
+/**
+ * 订阅条件下记录的变化，由{@link Subscription}在每次写入或者刷新之后产生。
+ * <p>
+ * 记录通过标识字段对应，参见{@link CacheBuilder#identity(String)}：标识相同但值不相等的记录为修改的记录。
+ * 没有声明标识字段时，被替换的记录表现为一条删除的记录以及一条新增的记录。
+ *
+ * @param <V> 缓存值类型
+ * @author shallowinggg
+ */
+public final class ChangeEvent<V> {
+    private final List<V> added;
+    private final List<V> removed;
+    private final List<V> changed;
+    private final List<V> previous;
+
+    ChangeEvent(List<V> added, List<V> removed, List<V> changed, List<V> previous) {
+        this.added = added;
+        this.removed = removed;
+        this.changed = changed;
+        this.previous = previous;
+    }
+
+    /**
+     * 新满足条件的记录
+     */
+    public List<V> getAdded() {
+        return added;
+    }
+
+    /**
+     * 不再满足条件的记录，包括被删除以及修改后不再满足条件的记录
+     */
+    public List<V> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * 修改前后都满足条件的记录修改后的值
+     */
+    public List<V> getChanged() {
+        return changed;
+    }
+
+    /**
+     * 修改的记录修改前的值，与{@link #getChanged()}一一对应
+     */
+    public List<V> getPrevious() {
+        return previous;
+    }
+
+    boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeEvent{added=" + added.size() + ", removed=" + removed.size()
+                + ", changed=" + changed.size() + '}';
+    }
+}
@@ -0,0 +1,199 @@
+package com.shallowinggg.palm.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static com.shallowinggg.palm.PreConditions.checkArgument;
+import static com.shallowinggg.palm.PreConditions.checkNotNull;
+
+/**
+ * 查询条件，由静态方法创建并通过{@link #and(Condition...)}、{@link #or(Condition...)}以及
+ * {@link #not(Condition)}组合，用于{@link Query}。
+ * <p>
+ * 等值条件使用{@link Object#equals(Object)}比较，范围条件使用字段值的自然顺序比较，
+ * 字段值为null的记录不满足任何范围条件。
+ *
+ * @author shallowinggg
+ */
+public abstract class Condition {
+    Condition() {}
+
+    /**
+     * 字段值等于value，即 field = value
+     *
+     * @param field 字段名称
+     * @param value 字段值
+     * @return 条件
+     */
+    public static Condition eq(String field, Object value) {
+        return new In(field, new Object[]{value});
+    }
+
+    /**
+     * 字段值等于values中的任意一个，即 field in (values)
+     *
+     * @param field  字段名称
+     * @param values 字段值
+     * @return 条件
+     */
+    public static Condition in(String field, Object... values) {
+        return new In(field, new LinkedHashSet<>(Arrays.asList(values)).toArray());
+    }
+
+    /**
+     * 字段值在给定范围内
+     *
+     * @param field         字段名称
+     * @param from          下界，为null时不限制下界
+     * @param fromInclusive 是否包含下界
+     * @param to            上界，为null时不限制上界
+     * @param toInclusive   是否包含上界
+     * @return 条件
+     */
+    public static Condition range(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        return new Range(field, from, fromInclusive, to, toInclusive);
+    }
+
+    /**
+     * 字段值在闭区间[from, to]内
+     */
+    public static Condition between(String field, Object from, Object to) {
+        return range(field, from, true, to, true);
+    }
+
+    public static Condition gt(String field, Object value) {
+        return range(field, checkNotNull(value), false, null, false);
+    }
+
+    public static Condition ge(String field, Object value) {
+        return range(field, checkNotNull(value), true, null, false);
+    }
+
+    public static Condition lt(String field, Object value) {
+        return range(field, null, false, checkNotNull(value), false);
+    }
+
+    public static Condition le(String field, Object value) {
+        return range(field, null, false, checkNotNull(value), true);
+    }
+
+    public static Condition not(Condition condition) {
+        return new Not(checkNotNull(condition));
+    }
+
+    public static Condition and(Condition... conditions) {
+        return new And(flatten(And.class, conditions));
+    }
+
+    public static Condition or(Condition... conditions) {
+        return new Or(flatten(Or.class, conditions));
+    }
+
+    private static List<Condition> flatten(Class<? extends Composite> type, Condition... conditions) {
+        checkArgument(conditions.length > 0, "at least one condition is required");
+        List<Condition> list = new ArrayList<>(conditions.length);
+        for (Condition condition : conditions) {
+            checkNotNull(condition);
+            if (type.isInstance(condition)) {
+                list.addAll(((Composite) condition).conditions);
+            } else {
+                list.add(condition);
+            }
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    static final class In extends Condition {
+        final String field;
+        final Object[] values;
+
+        In(String field, Object[] values) {
+            this.field = checkNotNull(field);
+            this.values = values;
+        }
+
+        @Override
+        public String toString() {
+            return values.length == 1 ? field + " = " + values[0] : field + " in " + Arrays.toString(values);
+        }
+    }
+
+    static final class Range extends Condition {
+        final String field;
+        final Object from;
+        final boolean fromInclusive;
+        final Object to;
+        final boolean toInclusive;
+
+        Range(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+            this.field = checkNotNull(field);
+            this.from = from;
+            this.fromInclusive = fromInclusive;
+            this.to = to;
+            this.toInclusive = toInclusive;
+        }
+
+        @Override
+        public String toString() {
+            return field + " in " + (from == null ? "(-∞" : (fromInclusive ? "[" : "(") + from) + ", "
+                    + (to == null ? "+∞)" : to + (toInclusive ? "]" : ")"));
+        }
+    }
+
+    static final class Not extends Condition {
+        final Condition condition;
+
+        Not(Condition condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        public String toString() {
+            return "not (" + condition + ")";
+        }
+    }
+
+    abstract static class Composite extends Condition {
+        final List<Condition> conditions;
+
+        Composite(List<Condition> conditions) {
+            this.conditions = conditions;
+        }
+
+        String join(String operator) {
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < conditions.size(); ++i) {
+                if (i > 0) {
+                    sb.append(' ').append(operator).append(' ');
+                }
+                sb.append(conditions.get(i));
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    static final class And extends Composite {
+        And(List<Condition> conditions) {
+            super(conditions);
+        }
+
+        @Override
+        public String toString() {
+            return join("and");
+        }
+    }
+
+    static final class Or extends Composite {
+        Or(List<Condition> conditions) {
+            super(conditions);
+        }
+
+        @Override
+        public String toString() {
+            return join("or");
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.shallowinggg.palm.cache;
+
+import com.shallowinggg.palm.cache.MultiDimensionCache.ReferenceEntry;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 只能追加的条目列表，支持一个写线程与多个读线程并发访问。
+ * <p>
+ * 写线程先写入元素（必要时先发布扩容后的数组），最后更新size；读线程先读取size，
+ * 再读取数组，因此读线程总能看到下标小于size的所有元素。
+ * 条目不会从列表中移除，被删除的条目通过{@link ReferenceEntry#getRemovedVersion()}标记，
+ * 由查询根据版本号过滤，并在构建新的一代时被清理。
+ *
+ * @author shallowinggg
+ */
+final class EntryList<V> implements Iterable<ReferenceEntry<V>> {
+    private static final int DEFAULT_CAPACITY = 4;
+
+    private volatile ReferenceEntry<V>[] elements;
+    private volatile int size;
+
+    EntryList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    EntryList(int initialCapacity) {
+        this.elements = (ReferenceEntry<V>[]) new ReferenceEntry[Math.max(initialCapacity, 1)];
+    }
+
+    /**
+     * 追加条目，只能由写线程调用
+     *
+     * @param entry 条目
+     */
+    void add(ReferenceEntry<V> entry) {
+        ReferenceEntry<V>[] a = elements;
+        int n = size;
+        if (n == a.length) {
+            a = Arrays.copyOf(a, n + (n >> 1) + 1);
+            elements = a;
+        }
+        a[n] = entry;
+        size = n + 1;
+    }
+
+    ReferenceEntry<V> get(int index) {
+        return elements[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<ReferenceEntry<V>> iterator() {
+        final int n = size;
+        final ReferenceEntry<V>[] a = elements;
+        return new Iterator<ReferenceEntry<V>>() {
+            int cursor;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < n;
+            }
+
+            @Override
+            public ReferenceEntry<V> next() {
+                if (cursor >= n) {
+                    throw new NoSuchElementException();
+                }
+                return a[cursor++];
+            }
+        };
+    }
+}
@@ -0,0 +1,133 @@
+package com.shallowinggg.palm.cache;
+
+import com.shallowinggg.palm.cache.MultiDimensionCache.ReferenceEntry;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 多个条目列表上的Spliterator，在遍历时过滤不可见或者已经过期的条目，不会复制条目列表。
+ * <p>
+ * 创建时记录每个条目列表的长度，之后追加的条目对查询版本不可见，因此不会被遍历。
+ * 所有条目列表组成一个连续的下标空间，分割时按照下标对半分割，单个较大的条目列表也可以被分割。
+ *
+ * @author shallowinggg
+ */
+final class EntrySpliterator<V> implements Spliterator<V> {
+    /**
+     * 剩余条目数少于此值时不再分割
+     */
+    private static final int MIN_SPLIT = 1 << 10;
+
+    private final EntryList<V>[] lists;
+
+    /**
+     * offsets[i]为第i个条目列表第一个条目的下标，最后一个元素为条目总数
+     */
+    private final int[] offsets;
+
+    /**
+     * 返回条目可见并且未过期时的值，否则返回null
+     */
+    private final Function<ReferenceEntry<V>, V> visitor;
+
+    private int origin;
+    private final int fence;
+
+    /**
+     * origin所在的条目列表
+     */
+    private int list;
+
+    EntrySpliterator(EntryList<V>[] lists, Function<ReferenceEntry<V>, V> visitor) {
+        this.lists = lists;
+        this.offsets = new int[lists.length + 1];
+        for (int i = 0; i < lists.length; ++i) {
+            offsets[i + 1] = offsets[i] + lists[i].size();
+        }
+        this.visitor = visitor;
+        this.fence = offsets[lists.length];
+    }
+
+    private EntrySpliterator(EntrySpliterator<V> parent, int origin, int fence) {
+        this.lists = parent.lists;
+        this.offsets = parent.offsets;
+        this.visitor = parent.visitor;
+        this.origin = origin;
+        this.fence = fence;
+        this.list = listOf(origin);
+    }
+
+    /**
+     * 查找包含给定下标的条目列表，即最后一个起始下标不大于index的条目列表
+     */
+    private int listOf(int index) {
+        int lo = 0;
+        int hi = lists.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= index) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super V> action) {
+        while (origin < fence) {
+            while (origin >= offsets[list + 1]) {
+                ++list;
+            }
+            V val = visitor.apply(lists[list].get(origin++ - offsets[list]));
+            if (val != null) {
+                action.accept(val);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super V> action) {
+        while (origin < fence) {
+            while (origin >= offsets[list + 1]) {
+                ++list;
+            }
+            EntryList<V> entries = lists[list];
+            int base = offsets[list];
+            int end = Math.min(fence, offsets[list + 1]);
+            for (; origin < end; ++origin) {
+                V val = visitor.apply(entries.get(origin - base));
+                if (val != null) {
+                    action.accept(val);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<V> trySplit() {
+        int lo = origin;
+        int mid = (lo + fence) >>> 1;
+        if (fence - lo < MIN_SPLIT) {
+            return null;
+        }
+        origin = mid;
+        list = listOf(mid);
+        return new EntrySpliterator<>(this, lo, mid);
+    }
+
+    @Override
+    public long estimateSize() {
+        return fence - origin;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
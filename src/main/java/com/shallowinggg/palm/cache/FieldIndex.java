@@ -0,0 +1,90 @@
+package com.shallowinggg.palm.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+/**
+ * 字段映射的句柄，通过{@link MultiDimensionCache#index(String)}创建。
+ * <p>
+ * 字段在创建句柄时校验一次，之后的查询直接使用句柄绑定的字段映射，不再按照字段名称查找。
+ * 句柄在刷新之后仍然有效：第一次在新的一代上查询时重新绑定此代的字段映射。
+ * 句柄只弱引用绑定的代以及字段映射，闲置的句柄不会阻止刷新后旧的一代被回收。
+ * 句柄是线程安全的，可以在多个线程之间共享。
+ *
+ * @param <V> 缓存值类型
+ * @param <K> 字段值类型
+ * @author shallowinggg
+ */
+public final class FieldIndex<V, K> {
+    private final MultiDimensionCache<V> cache;
+    private final String field;
+    private volatile Binding<V> binding;
+
+    FieldIndex(MultiDimensionCache<V> cache, String field) {
+        this.cache = cache;
+        this.field = field;
+    }
+
+    public String field() {
+        return field;
+    }
+
+    /**
+     * 返回字段值对应的记录
+     * 注意：如果没有对应的记录，那么返回Collections.emptyList()
+     *
+     * @param key 字段值
+     * @return 对应的记录
+     */
+    public List<V> get(K key) {
+        Generation<V> gen = cache.generation();
+        return cache.lookup(gen, bind(gen), key);
+    }
+
+    /**
+     * 是否存在字段值对应的记录
+     *
+     * @param key 字段值
+     * @return 如果存在，返回true
+     */
+    public boolean contains(K key) {
+        Generation<V> gen = cache.generation();
+        return cache.lookupCount(gen, bind(gen), key, 1) > 0;
+    }
+
+    /**
+     * 返回字段值对应的记录数
+     *
+     * @param key 字段值
+     * @return 记录数
+     */
+    public int count(K key) {
+        Generation<V> gen = cache.generation();
+        return cache.lookupCount(gen, bind(gen), key, Integer.MAX_VALUE);
+    }
+
+    private FieldMapping<V> bind(Generation<V> gen) {
+        Binding<V> b = binding;
+        FieldMapping<V> map;
+        if (b == null || b.gen.get() != gen || (map = b.map.get()) == null) {
+            map = cache.resolveMapping(gen, field);
+            binding = new Binding<>(gen, map);
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "FieldIndex{" + field + '}';
+    }
+
+    private static final class Binding<V> {
+        final WeakReference<Generation<V>> gen;
+        final WeakReference<FieldMapping<V>> map;
+
+        Binding(Generation<V> gen, FieldMapping<V> map) {
+            this.gen = new WeakReference<>(gen);
+            this.map = new WeakReference<>(map);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.shallowinggg.palm.cache;
+
+import com.shallowinggg.palm.cache.MultiDimensionCache.ReferenceEntry;
+import com.shallowinggg.palm.reflect.MethodWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 字段映射，以字段值为键，具有此字段值的条目为值。
+ * <p>
+ * 每个分段拥有独立的映射，不同分段可以由不同的线程同时构建。
+ * 构建完成后映射只由持有写锁的线程修改，查询线程可以并发读取。
+ * <p>
+ * 有序映射按照字段值的自然顺序保存，除了等值查询外还支持范围查询以及最小最大值，
+ * 字段值为null的条目排在最前面，不会出现在任何范围中。与哈希映射一致，查询的字段值或者范围的边界
+ * 与字段值的类型不能比较时，视为没有对应的条目。
+ * <p>
+ * 组合映射以多个字段值组成的列表为键，列表的顺序与声明组合索引时字段的顺序一致。
+ * <p>
+ * 前缀映射是String字段上的有序映射，具有相同前缀的字段值在映射中连续排列。
+ * 忽略大小写时以转换为小写的字段值为键。
+ * <p>
+ * 派生映射以用户函数计算的值为键，其余行为与字段映射相同。
+ *
+ * @author shallowinggg
+ */
+final class FieldMapping<V> {
+    private static final Logger LOG = LoggerFactory.getLogger(FieldMapping.class);
+
+    /**
+     * ConcurrentHashMap不支持null键，字段值为null时使用此对象代替
+     */
+    private static final Object NULL_KEY = new Object();
+
+    /**
+     * 有序映射使用的比较器，NULL_KEY小于任何字段值
+     */
+    @SuppressWarnings("unchecked")
+    private static final Comparator<Object> NULL_FIRST = (a, b) -> {
+        if (a == b) {
+            return 0;
+        } else if (a == NULL_KEY) {
+            return -1;
+        } else if (b == NULL_KEY) {
+            return 1;
+        }
+        return ((Comparable<Object>) a).compareTo(b);
+    };
+
+    private final MethodWrapper[] methods;
+    private final Function<? super V, ?> extractor;
+    private final boolean sorted;
+    private final boolean ignoreCase;
+    private final ConcurrentMap<Object, EntryList<V>>[] maps;
+
+    FieldMapping(MethodWrapper method, int segments) {
+        this(new MethodWrapper[]{method}, null, segments, false, false);
+    }
+
+    FieldMapping(MethodWrapper method, int segments, boolean sorted) {
+        this(new MethodWrapper[]{method}, null, segments, sorted, false);
+    }
+
+    /**
+     * 创建组合映射
+     *
+     * @param methods  各个字段的getter方法
+     * @param segments 分段数
+     */
+    FieldMapping(MethodWrapper[] methods, int segments) {
+        this(methods, null, segments, false, false);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private FieldMapping(MethodWrapper[] methods, Function<? super V, ?> extractor, int segments,
+                         boolean sorted, boolean ignoreCase) {
+        this.methods = methods;
+        this.extractor = extractor;
+        this.sorted = sorted;
+        this.ignoreCase = ignoreCase;
+        this.maps = new ConcurrentMap[segments];
+        for (int i = 0; i < segments; ++i) {
+            maps[i] = sorted ? new ConcurrentSkipListMap<>(NULL_FIRST) : new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * 创建String字段的前缀映射
+     *
+     * @param method     字段的getter方法
+     * @param segments   分段数
+     * @param ignoreCase 是否忽略大小写
+     * @return 前缀映射
+     */
+    static <V> FieldMapping<V> prefixMapping(MethodWrapper method, int segments, boolean ignoreCase) {
+        return new FieldMapping<>(new MethodWrapper[]{method}, null, segments, true, ignoreCase);
+    }
+
+    /**
+     * 创建派生映射
+     *
+     * @param extractor 计算键的函数，可能被多个线程同时调用
+     * @param segments  分段数
+     * @return 派生映射
+     */
+    static <V> FieldMapping<V> derivedMapping(Function<? super V, ?> extractor, int segments) {
+        return new FieldMapping<>(null, extractor, segments, false, false);
+    }
+
+    boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * 获取分段中字段值对应的条目
+     *
+     * @param segment 分段下标
+     * @param key     字段值
+     * @return 条目列表，如果不存在返回null
+     */
+    EntryList<V> get(int segment, Object key) {
+        try {
+            return maps[segment].get(maskNull(key));
+        } catch (ClassCastException e) {
+            // 有序映射中类型不同的键不会与任何字段值相等
+            return null;
+        }
+    }
+
+    /**
+     * 获取分段中字段值在给定范围内的条目列表，按照字段值升序排列，只能用于有序映射
+     *
+     * @param segment       分段下标
+     * @param from          下界，为null时不限制下界
+     * @param fromInclusive 是否包含下界
+     * @param to            上界，为null时不限制上界
+     * @param toInclusive   是否包含上界
+     * @return 条目列表
+     */
+    Collection<EntryList<V>> range(int segment, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        NavigableMap<Object, EntryList<V>> map = (NavigableMap<Object, EntryList<V>>) maps[segment];
+        if (from == null) {
+            from = NULL_KEY;
+            fromInclusive = false;
+        }
+        if (to == null) {
+            return comparable(map, from) ? map.tailMap(from, fromInclusive).values() : Collections.emptyList();
+        }
+        if (!comparable(map, from) || !comparable(map, to) || NULL_FIRST.compare(from, to) > 0) {
+            return Collections.emptyList();
+        }
+        return map.subMap(from, fromInclusive, to, toInclusive).values();
+    }
+
+    /**
+     * 边界是否可以与映射中的字段值比较。映射中非null的字段值类型相同，因此只需与其中一个比较，
+     * 视图在遍历时才会比较边界，所以需要在创建视图之前检查
+     */
+    private static boolean comparable(NavigableMap<Object, ?> map, Object bound) {
+        if (bound == NULL_KEY) {
+            return true;
+        }
+        Object key = map.higherKey(NULL_KEY);
+        if (key == null) {
+            return true;
+        }
+        try {
+            NULL_FIRST.compare(bound, key);
+            return true;
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 按照字段值升序或者降序遍历分段中的字段值以及条目列表，不包括null，只能用于有序映射
+     *
+     * @param segment    分段下标
+     * @param descending 是否降序
+     * @return 字段值到条目列表的映射
+     */
+    NavigableMap<Object, EntryList<V>> ordered(int segment, boolean descending) {
+        NavigableMap<Object, EntryList<V>> map =
+                ((NavigableMap<Object, EntryList<V>>) maps[segment]).tailMap(NULL_KEY, false);
+        return descending ? map.descendingMap() : map;
+    }
+
+    /**
+     * 按照字段值升序遍历分段中以prefix开头的字段值以及条目列表，只能用于前缀映射
+     *
+     * @param segment 分段下标
+     * @param prefix  经过{@link #normalize(String)}处理的前缀
+     * @return 字段值到条目列表的映射
+     */
+    NavigableMap<Object, EntryList<V>> prefixed(int segment, String prefix) {
+        NavigableMap<Object, EntryList<V>> map = ordered(segment, false);
+        if (prefix.isEmpty()) {
+            return map;
+        }
+        // 以prefix开头的字符串都小于将prefix最后一个字符加一得到的字符串
+        char last = prefix.charAt(prefix.length() - 1);
+        if (last == Character.MAX_VALUE) {
+            return map.tailMap(prefix, true);
+        }
+        String end = prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+        return map.subMap(prefix, true, end, false);
+    }
+
+    /**
+     * 将查询使用的字符串转换为映射中的键
+     *
+     * @param key 字符串
+     * @return 映射中的键
+     */
+    String normalize(String key) {
+        return ignoreCase ? key.toLowerCase(Locale.ROOT) : key;
+    }
+
+    /**
+     * 遍历分段中所有的字段值以及对应的条目列表
+     *
+     * @param segment 分段下标
+     * @param action  参数为字段值以及条目列表
+     */
+    void forEach(int segment, BiConsumer<Object, EntryList<V>> action) {
+        for (Map.Entry<Object, EntryList<V>> e : maps[segment].entrySet()) {
+            Object key = e.getKey();
+            action.accept(key == NULL_KEY ? null : key, e.getValue());
+        }
+    }
+
+    /**
+     * 将条目加入分段的映射，已经被回收的条目会被忽略
+     *
+     * @param segment 分段下标
+     * @param entry   条目
+     */
+    void add(int segment, ReferenceEntry<V> entry) {
+        V val = entry.getVal();
+        if (val == null) {
+            return;
+        }
+        maps[segment].computeIfAbsent(maskNull(keyOf(val)), k -> new EntryList<>()).add(entry);
+    }
+
+    /**
+     * 将分段中从from开始的所有条目加入映射
+     *
+     * @param segment 分段下标
+     * @param values  分段的条目列表
+     * @param from    起始下标
+     * @return 下一次需要加入的起始下标
+     */
+    int addAll(int segment, EntryList<V> values, int from) {
+        int n = values.size();
+        for (int i = from; i < n; ++i) {
+            add(segment, values.get(i));
+        }
+        return n;
+    }
+
+    /**
+     * 创建一个分段数相同的空映射
+     *
+     * @return 新的映射
+     */
+    FieldMapping<V> emptyCopy() {
+        return new FieldMapping<>(methods, extractor, maps.length, sorted, ignoreCase);
+    }
+
+    /**
+     * 将source中给定分段满足条件的条目复制到此映射，不会重新调用getter方法
+     *
+     * @param source  源映射
+     * @param segment 分段下标
+     * @param retain  保留条件
+     */
+    void copySegment(FieldMapping<V> source, int segment, Predicate<ReferenceEntry<V>> retain) {
+        ConcurrentMap<Object, EntryList<V>> target = maps[segment];
+        for (Map.Entry<Object, EntryList<V>> e : source.maps[segment].entrySet()) {
+            EntryList<V> entries = null;
+            for (ReferenceEntry<V> entry : e.getValue()) {
+                if (retain.test(entry)) {
+                    if (entries == null) {
+                        entries = new EntryList<>(e.getValue().size());
+                    }
+                    entries.add(entry);
+                }
+            }
+            if (entries != null) {
+                target.put(e.getKey(), entries);
+            }
+        }
+    }
+
+    /**
+     * 获取值对应的字段值，组合映射返回各个字段值组成的列表，派生映射返回函数计算的值
+     *
+     * @param val 值
+     * @return 字段值
+     */
+    Object keyOf(V val) {
+        if (extractor != null) {
+            return extractor.apply(val);
+        }
+        if (methods.length == 1) {
+            Object key = invoke(methods[0], val);
+            return ignoreCase && key != null ? normalize((String) key) : key;
+        }
+        Object[] key = new Object[methods.length];
+        for (int i = 0; i < methods.length; ++i) {
+            key[i] = invoke(methods[i], val);
+        }
+        return Arrays.asList(key);
+    }
+
+    static Object invoke(MethodWrapper method, Object val) {
+        try {
+            return method.invoke(val);
+        } catch (Throwable t) {
+            LOG.error("Invoke method " + method.getMethodName() + " fail", t);
+            throw new RuntimeException(t);
+        }
+    }
+
+    private static Object maskNull(Object key) {
+        return key == null ? NULL_KEY : key;
+    }
+}
@@ -0,0 +1,164 @@
+package com.shallowinggg.palm.cache;
+
+import com.shallowinggg.palm.cache.MultiDimensionCache.ReferenceEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 缓存数据的一代。
+ * <p>
+ * 每次全量刷新都会在旁路构建一个全新的Generation，包括缓存值列表以及所有已经物化的字段映射，
+ * 构建完成后通过一次原子的引用替换进行发布。查询线程在开始时获取当前代的引用，之后的读取
+ * 全部基于此代，因此不会被刷新阻塞，也不会看到加载了一半的数据。
+ * 旧的代在不再被任何查询持有后由GC回收。
+ * <p>
+ * 缓存值被划分为多个分段，每个分段拥有自己的条目列表以及字段映射，构建以及大范围的查询可以在分段间并行。
+ * <p>
+ * 增量变化直接在当前代上修改：新条目以及删除标记都带有版本号，所有结构修改完成后再发布
+ * {@link #version}。查询在开始时读取一次版本号，只返回在此版本可见的条目，因此一次变化
+ * 对所有字段映射同时生效。
+ *
+ * @author shallowinggg
+ */
+final class Generation<V> {
+    /**
+     * 每个分段的缓存值列表，只会追加
+     */
+    final EntryList<V>[] values;
+
+    /**
+     * 字段映射，每个字段对应一个Future，Future完成后映射由写线程维护
+     */
+    final ConcurrentMap<String, CompletableFuture<FieldMapping<V>>> mapping;
+
+    /**
+     * 已经发布的版本号
+     */
+    volatile long version;
+
+    /**
+     * 未被删除的条目数
+     */
+    volatile int size;
+
+    /**
+     * 已经被删除但是仍然保存在values中的条目数，只由写线程访问
+     */
+    int removed;
+
+    /**
+     * 按照差异重新加载时原地替换值的次数，只在写锁内修改。
+     * 构建映射期间发生替换时，构建线程丢弃已经构建的映射并重新构建
+     */
+    volatile long replacements;
+
+    /**
+     * 标识字段值到条目的映射，只由写线程访问，在第一次增量修改时构建
+     */
+    Map<Object, ReferenceEntry<V>> identities;
+
+    /**
+     * 唯一索引，在此代发布之前构建，没有声明唯一字段时为null
+     */
+    UniqueIndex<V> unique;
+
+    /**
+     * 下一个新条目加入的分段，只由写线程访问
+     */
+    private int nextSegment;
+
+    Generation(EntryList<V>[] values, int fieldCount, long version) {
+        this.values = values;
+        this.mapping = new ConcurrentHashMap<>(fieldCount);
+        this.version = version;
+        this.size = entries();
+    }
+
+    int segments() {
+        return values.length;
+    }
+
+    /**
+     * 获取所有分段中的条目总数，包括已经被删除的条目
+     *
+     * @return 条目总数
+     */
+    int entries() {
+        int n = 0;
+        for (EntryList<V> list : values) {
+            n += list.size();
+        }
+        return n;
+    }
+
+    /**
+     * 选择新条目加入的分段，依次轮转以保持各分段大小均衡，只由写线程调用
+     *
+     * @return 分段下标
+     */
+    int nextSegment() {
+        int segment = nextSegment;
+        nextSegment = (segment + 1) % values.length;
+        return segment;
+    }
+
+    /**
+     * 获取已经构建完成的字段映射
+     *
+     * @param name 字段名称
+     * @return 字段映射，如果尚未构建或者正在构建，返回null
+     */
+    FieldMapping<V> getMapping(String name) {
+        CompletableFuture<FieldMapping<V>> future = mapping.get(name);
+        if (future == null || !future.isDone() || future.isCompletedExceptionally()) {
+            return null;
+        }
+        return future.join();
+    }
+
+    /**
+     * 放入已经构建完成的字段映射，只能在此代发布之前调用
+     *
+     * @param name 字段名称
+     * @param map  字段映射
+     */
+    void putMapping(String name, FieldMapping<V> map) {
+        mapping.put(name, CompletableFuture.completedFuture(map));
+    }
+
+    /**
+     * 获取所有已经构建完成映射的字段
+     *
+     * @return 字段名称
+     */
+    List<String> mappedFields() {
+        List<String> names = new ArrayList<>(mapping.size());
+        for (String name : mapping.keySet()) {
+            if (getMapping(name) != null) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * 获取所有已经构建完成的字段映射，由写线程在修改时使用
+     *
+     * @return 字段映射
+     */
+    List<FieldMapping<V>> builtMappings() {
+        List<FieldMapping<V>> mappings = new ArrayList<>(mapping.size());
+        for (String name : mapping.keySet()) {
+            FieldMapping<V> map = getMapping(name);
+            if (map != null) {
+                mappings.add(map);
+            }
+        }
+        return mappings;
+    }
+}
@@ -1,5 +1,6 @@
 package com.shallowinggg.palm.cache;
 
+import com.shallowinggg.palm.concurrent.NamedThreadFactory;
 import com.shallowinggg.palm.reflect.MethodWrapper;
 import com.shallowinggg.palm.reflect.TypeReference;
 import org.slf4j.Logger;
@@ -11,10 +12,32 @@ import java.lang.reflect.Field;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.concurrent.atomic.LongAdder;
 
 import static com.shallowinggg.palm.PreConditions.*;
@@ -36,8 +59,43 @@ import static com.shallowinggg.palm.PreConditions.*;
  * 以字段为核心，对每个字段分别进行缓存，构建以此字段的多个值为键，符合此字段值的实例为值的Map，
  * 即 select * from table where fieldX = ...
  * <p>
+ * 多个字段的联合条件通过{@link #getMappingValues(Map)}查询，即 select * from table where fieldX = ... and fieldY = ...，
+ * 每个分段从条目最少的字段出发，对其他字段逐一校验，只有最终满足所有条件的值会被加入结果。
+ * 通过{@link CacheBuilder#compositeIndex(String...)}声明的组合索引以多个字段值为键，
+ * 条件覆盖组合索引的全部字段时只需一次哈希查找。
+ * <p>
+ * 可以通过{@link CacheBuilder#concurrencyLevel(int)}将缓存值划分为多个分段，每个分段拥有独立的字段映射，
+ * 加载、构建映射以及结果较多的查询会在{@link ForkJoinPool}中按分段并行执行。
+ * 分段时查询结果的顺序不作保证。
+ * <p>
+ * 通过{@link CacheBuilder#sortedFields(String...)}声明的字段使用有序映射，除了等值查询外还支持
+ * {@link #getRangeValues(String, Object, boolean, Object, boolean)}范围查询以及{@link #min(String)}、
+ * {@link #max(String)}，代价为对数时间加上结果数量。
+ * <p>
+ * 更复杂的条件通过{@link #query()}创建的{@link Query}查询，支持等值、范围、not以及and、or的组合，
+ * 查询计划根据字段映射估计每个条件的记录数，从选择性最高的条件开始执行，只有没有映射可用时才遍历全部记录。
+ * 查询计划只使用已经构建或者通过{@link CacheBuilder#indexFields(String...)}、
+ * {@link CacheBuilder#sortedFields(String...)}声明的映射，不会为了估计记录数构建其他字段的映射。
+ * <p>
+ * 通过{@link CacheBuilder#prefixIndex(String, boolean)}声明的String字段使用前缀映射，
+ * {@link #getPrefixValues(String, String, int)}按照字段值顺序返回以给定前缀开头的记录。
+ * <p>
+ * 通过{@link CacheBuilder#derivedIndex(String, Function)}声明的派生索引以用户函数计算的值为键，
+ * 可以通过索引名称像字段一样进行等值查询。
+ * <p>
+ * 通过{@link #subscribe(String, Object, Consumer)}以及{@link #subscribe(Predicate, Consumer)}订阅条件，
+ * 每次写入或者刷新之后在{@link CacheBuilder#notificationExecutor(Executor)}中异步通知满足条件的记录的变化。
+ * <p>
+ * 通过{@link CacheBuilder#unique(String)}声明的唯一字段使用唯一索引，{@link #get(Object)}直接返回唯一的值。
+ * <p>
+ * 通过{@link CacheBuilder#indexFields(String...)}声明的字段映射在构建缓存以及每次全量刷新时预先并行构建，
+ * 构建完成后才对查询可见，避免第一次查询时构建映射带来的延迟。
+ * <p>
+ * 缓存值以及字段映射保存在{@link Generation}中，全量刷新时构建新的一代并原子替换，
+ * 增量刷新时在当前代上原地修改并通过版本号发布，查询总是基于某一代某个版本完整的快照进行。
+ * <p>
  * 注意：
- * 1. 此类最多只支持具有64个字段的类对象，如需拓展，可更改lock为线程安全的BitSet
+ * 1. 字段映射在第一次查询此字段时构建，同一代中每个字段只会构建一次，并发的查询会等待构建完成后共享结果
  * 2. 可选择严格模式与非严格模式，严格模式要求每一个字段必须有与之对应的getter方法
  *
  * @author shallowinggg
@@ -47,9 +105,53 @@ public class MultiDimensionCache<V> {
     private static final Logger LOG = LoggerFactory.getLogger(MultiDimensionCache.class);
 
     /**
-     * 缓存值列表。
+     * 查询涉及的条目数达到此阈值时，按分段并行收集结果
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 13;
+
+    /**
+     * 定时刷新的随机抖动比例，避免大量缓存在同一时刻访问数据源
+     */
+    private static final double REFRESH_JITTER = 0.1;
+
+    /**
+     * 按照差异重新加载时，需要新增或者删除的条目数超过当前条目数的此比例时，改为构建新的一代
+     */
+    private static final double DIFF_REBUILD_RATIO = 0.25;
+
+    /**
+     * 前缀映射名称的前缀，字段名称不会包含':'，因此不会与字段映射以及组合索引冲突
+     */
+    private static final String PREFIX_MAPPING = "prefix:";
+
+    /**
+     * 只负责触发定时刷新，实际的加载在每个缓存的刷新执行器中进行，因此一个缓存加载缓慢不会影响其他缓存
+     */
+    private static final ScheduledExecutorService REFRESH_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("palm-cache-refresh-scheduler", true));
+
+    /**
+     * 默认的刷新执行器，所有缓存共享，每次加载使用一个守护线程
+     */
+    static final Executor DEFAULT_REFRESH_EXECUTOR =
+            Executors.newCachedThreadPool(new NamedThreadFactory("palm-cache-refresh", true));
+
+    /**
+     * 分区加载的执行器，所有缓存共享。加载线程本身可能是刷新执行器中的线程，
+     * 如果在刷新执行器中加载其余分区并等待，那么有界的刷新执行器会发生死锁
+     */
+    private static final Executor PARTITION_LOAD_EXECUTOR =
+            Executors.newCachedThreadPool(new NamedThreadFactory("palm-cache-partition-loader", true));
+
+    /**
+     * 当前代的缓存数据，包括缓存值列表以及字段映射
+     */
+    private final AtomicReference<Generation<V>> generation = new AtomicReference<>();
+
+    /**
+     * 写锁，所有对缓存数据的修改以及代的替换都需要持有此锁
      */
-    private List<ReferenceEntry<V>> values;
+    private final ReentrantLock writeLock = new ReentrantLock();
 
     /**
      * 类型V的字段名称
@@ -62,10 +164,9 @@ public class MultiDimensionCache<V> {
     private Map<String, MethodWrapper> getterMethods;
 
     /**
-     * 缓存映射
-     * Map的key为字段的值，value对应的缓存值
+     * 非严格模式下没有getter方法的字段，在解析类型时设置为可访问，只用于{@link #scan(String, Predicate)}
      */
-    private Map<String, Map<Object, List<ReferenceEntry<V>>>> mapping;
+    private final Map<String, Field> rawFields = new HashMap<>();
 
     /**
      * 是否严格匹配。
@@ -75,13 +176,63 @@ public class MultiDimensionCache<V> {
 
     private volatile boolean initialized = false;
 
-    private AtomicLong lock = new AtomicLong();
-
     /**
      * 初始容量
      */
     private int initialCapacity;
 
+    /**
+     * 分段数
+     */
+    private int concurrencyLevel;
+
+    /**
+     * 执行并行加载、构建映射以及查询的线程池
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * 需要预先构建映射的字段
+     */
+    private List<String> indexFields;
+
+    /**
+     * 使用有序映射的字段
+     */
+    private Set<String> sortedFields;
+
+    /**
+     * 组合索引名称到字段的映射，按照字段数从多到少排列
+     */
+    private Map<String, String[]> compositeIndexes;
+
+    /**
+     * 声明了前缀索引的字段，值为是否忽略大小写
+     */
+    private Map<String, Boolean> prefixFields;
+
+    /**
+     * 派生索引名称到计算键的函数的映射
+     */
+    private Map<String, Function<? super V, ?>> derivedIndexes;
+
+    /**
+     * {@link #getMappingValues(String, Object...)}的结果缓存，未开启时为null
+     */
+    private ResultCache<V> resultCache;
+
+    /**
+     * 通知订阅者的执行器
+     */
+    private Executor notificationExecutor;
+
+    private final List<Subscription<V>> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * 分区加载时同时加载的最大分区数
+     */
+    private int loadParallelism;
+
     /**
      * 值引用强度
      * STRONG, SOFT, WEAK
@@ -106,210 +257,2852 @@ public class MultiDimensionCache<V> {
     private int clearExpireThreshold;
     private int queries;
 
+    /**
+     * 标识字段，用于在增量刷新以及写入时匹配已有的条目。
+     * 如果没有声明标识字段，那么写入时使用值本身作为标识
+     */
+    private String identityField;
+    private MethodWrapper identityMethod;
+
+    /**
+     * 唯一字段
+     */
+    private String uniqueField;
+    private MethodWrapper uniqueMethod;
+
+    /**
+     * 全量刷新时是否与当前数据比较，只修改发生变化的条目
+     */
+    private boolean reloadByDiff;
+
+    /**
+     * 值类型是否重写了equals方法，没有重写时无法判断值是否变化，按照差异重新加载退化为全量刷新
+     */
+    private boolean comparableValues;
+
+    /**
+     * 最近一次加载的水位
+     */
+    private volatile long watermark;
+
     private CacheLoader<V> cacheLoader;
-    private static ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
+
+    /**
+     * 刷新执行器
+     */
+    private Executor refreshExecutor;
+
+    /**
+     * 正在进行的刷新，用于合并并发的刷新请求
+     */
+    private final AtomicReference<CompletableFuture<Void>> refreshing = new AtomicReference<>();
 
     MultiDimensionCache(CacheBuilder<? super V> builder, CacheLoader<V> loader, TypeReference<V> type) {
         this.cacheLoader = loader;
 
         this.strict = builder.isStrict();
         this.initialCapacity = builder.getInitialCapacity();
+        this.concurrencyLevel = builder.getConcurrencyLevel();
+        this.pool = builder.getForkJoinPool();
         this.clearExpireThreshold = builder.getClearExpireThreshold();
         this.strength = builder.getStrength();
         this.expireAfterWriteNanos = builder.getExpireAfterWriteNanos();
         this.expireAfterAccessNanos = builder.getExpireAfterAccessNanos();
         this.refreshNanos = builder.getRefreshNanos();
-        this.values = new ArrayList<>(initialCapacity);
+        this.refreshExecutor = builder.getRefreshExecutor();
+        this.notificationExecutor = builder.getNotificationExecutor();
+        this.loadParallelism = builder.getLoadParallelism();
 
-        LOG.debug("strict: " + strict + ", initialCapacity: " + initialCapacity + ", clearExpireThreshold: " + clearExpireThreshold
+        LOG.debug("strict: " + strict + ", initialCapacity: " + initialCapacity + ", concurrencyLevel: " + concurrencyLevel
+                + ", clearExpireThreshold: " + clearExpireThreshold
                 + ", strength: " + strength + ", expireAfterWriteNanos: " + expireAfterWriteNanos + ", expireAfterAccessNanos: "
                 + expireAfterAccessNanos + ", refreshNanos: " + refreshNanos);
 
         @SuppressWarnings("unchecked")
         Class<V> clazz = (Class<V>) type.getType();
         resolveClass(clazz);
-        this.mapping = new HashMap<>(fields.size());
+
+        this.identityField = builder.getIdentityField();
+        if (identityField != null) {
+            checkArgument(getterMethods.containsKey(identityField), "Field %s is not exist", identityField);
+            checkNotNull(identityMethod = getterMethods.get(identityField),
+                    "Field %s don't have getter method", identityField);
+        }
+        this.uniqueField = builder.getUniqueField();
+        if (uniqueField != null) {
+            checkArgument(getterMethods.containsKey(uniqueField), "Field %s is not exist", uniqueField);
+            checkNotNull(uniqueMethod = getterMethods.get(uniqueField),
+                    "Field %s don't have getter method", uniqueField);
+        }
+        this.reloadByDiff = builder.isReloadByDiff();
+        checkState(!reloadByDiff || identityField != null, "reloadByDiff requires an identity field");
+        this.comparableValues = overridesEquals(clazz);
+        this.sortedFields = resolveSortedFields(builder);
+        this.indexFields = resolveIndexFields(builder);
+        this.compositeIndexes = resolveCompositeIndexes(builder);
+        indexFields.addAll(compositeIndexes.keySet());
+        this.derivedIndexes = resolveDerivedIndexes(builder);
+        if (builder.getResultCacheSize() > 0) {
+            this.resultCache = new ResultCache<>(builder.getResultCacheSize(),
+                    expireAfterWriteNanos, expireAfterAccessNanos);
+        }
+        indexFields.addAll(derivedIndexes.keySet());
+        this.prefixFields = resolvePrefixFields(builder);
+        for (String name : prefixFields.keySet()) {
+            indexFields.add(PREFIX_MAPPING + name);
+        }
 
         try {
-            List<V> list = cacheLoader.load();
-            for (V val : list) {
-                values.add(strength.referenceEntry(val));
-            }
+            generation.set(loadGeneration(indexFields, true));
+            watermark = cacheLoader.watermark();
         } catch (Exception e) {
             throw new LoadingRuntimeException(e);
         }
-        if(refreshNanos > 0) {
-            executorService.scheduleAtFixedRate(this::refresh, refreshNanos, refreshNanos, TimeUnit.NANOSECONDS);
+        if(refreshNanos > 0) {
+            scheduleRefresh();
+        }
+    }
+
+    /**
+     * 在带有随机抖动的刷新间隔后异步刷新，刷新完成后再安排下一次刷新
+     */
+    private void scheduleRefresh() {
+        long jitter = (long) (refreshNanos * REFRESH_JITTER);
+        long delay = refreshNanos - jitter + ThreadLocalRandom.current().nextLong(2 * jitter + 1);
+        REFRESH_SCHEDULER.schedule(() -> {
+            refreshAsync().whenComplete((v, t) -> scheduleRefresh());
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 解析Class，获取其所有字段以及相应的getter方法
+     *
+     * @param clazz Class
+     */
+    private void resolveClass(Class<?> clazz) {
+        LOG.debug("Reflect class: " + clazz);
+        checkState(!initialized, "repeat init");
+
+        Field[] fields;
+        if (System.getSecurityManager() != null) {
+            fields = AccessController.doPrivileged((PrivilegedAction<Field[]>) clazz::getDeclaredFields);
+        } else {
+            fields = clazz.getDeclaredFields();
+        }
+        getterMethods = new HashMap<>(fields.length);
+
+        for (Field field : fields) {
+            String fieldName = field.getName();
+            this.fields.add(fieldName);
+
+            MethodWrapper m;
+            try {
+                if (field.getType() == boolean.class || field.getType() == Boolean.class) {
+                    m = MethodWrapper.findGetterMethod(clazz, getterMethodName(fieldName, true));
+                } else {
+                    m = MethodWrapper.findGetterMethod(clazz, getterMethodName(fieldName, false));
+                }
+                getterMethods.put(fieldName, m);
+            } catch (NoSuchMethodException e) {
+                if (strict) {
+                    LOG.error("Class " + clazz.getName() + " don't have getter method for field " + field.getName(), e);
+                    throw new RuntimeException(e);
+                } else {
+                    LOG.warn("Class " + clazz.getName() + " don't have getter method for field " + field.getName());
+                    // 占位
+                    getterMethods.put(fieldName, null);
+                    try {
+                        field.setAccessible(true);
+                        rawFields.put(fieldName, field);
+                    } catch (RuntimeException ex) {
+                        LOG.warn("Field " + fieldName + " of class " + clazz.getName() + " is not accessible", ex);
+                    }
+                }
+            }
+        }
+
+        initialized = true;
+    }
+
+    private List<String> resolveIndexFields(CacheBuilder<?> builder) {
+        List<String> names = new ArrayList<>();
+        if (builder.isIndexAllFields()) {
+            for (String name : fields) {
+                if (getterMethods.get(name) != null) {
+                    names.add(name);
+                }
+            }
+            return names;
+        }
+        for (String name : builder.getIndexFields()) {
+            checkArgument(getterMethods.containsKey(name), "Field %s is not exist", name);
+            checkNotNull(getterMethods.get(name), "Field %s don't have getter method", name);
+            names.add(name);
+        }
+        return names;
+    }
+
+    private Set<String> resolveSortedFields(CacheBuilder<?> builder) {
+        Set<String> names = new HashSet<>();
+        for (String name : builder.getSortedFields()) {
+            checkArgument(getterMethods.containsKey(name), "Field %s is not exist", name);
+            MethodWrapper method = checkNotNull(getterMethods.get(name), "Field %s don't have getter method", name);
+            Class<?> type = method.getReturnType();
+            checkArgument(type.isPrimitive() || Comparable.class.isAssignableFrom(type),
+                    "Field %s is not comparable", name);
+            names.add(name);
+        }
+        return names;
+    }
+
+    private Map<String, String[]> resolveCompositeIndexes(CacheBuilder<?> builder) {
+        List<String[]> indexes = new ArrayList<>(builder.getCompositeIndexes());
+        indexes.sort((a, b) -> b.length - a.length);
+        Map<String, String[]> composites = new LinkedHashMap<>();
+        for (String[] names : indexes) {
+            for (String name : names) {
+                checkArgument(getterMethods.containsKey(name), "Field %s is not exist", name);
+                checkNotNull(getterMethods.get(name), "Field %s don't have getter method", name);
+            }
+            composites.put(String.join(",", names), names);
+        }
+        return composites;
+    }
+
+    private Map<String, Boolean> resolvePrefixFields(CacheBuilder<?> builder) {
+        Map<String, Boolean> names = new HashMap<>();
+        for (Map.Entry<String, Boolean> e : builder.getPrefixIndexes().entrySet()) {
+            String name = e.getKey();
+            checkArgument(getterMethods.containsKey(name), "Field %s is not exist", name);
+            MethodWrapper method = checkNotNull(getterMethods.get(name), "Field %s don't have getter method", name);
+            checkArgument(method.getReturnType() == String.class, "Field %s is not a String", name);
+            names.put(name, e.getValue());
+        }
+        return names;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Function<? super V, ?>> resolveDerivedIndexes(CacheBuilder<?> builder) {
+        Map<String, Function<? super V, ?>> indexes = new HashMap<>();
+        for (Map.Entry<String, Function<?, ?>> e : builder.getDerivedIndexes().entrySet()) {
+            String name = e.getKey();
+            checkArgument(!getterMethods.containsKey(name), "Derived index %s conflicts with field", name);
+            indexes.put(name, (Function<? super V, ?>) e.getValue());
+        }
+        return indexes;
+    }
+
+    /**
+     * 创建字段的空映射，声明为有序的字段使用有序映射，组合索引使用组合映射，前缀索引使用前缀映射，
+     * 派生索引使用派生映射
+     *
+     * @param name     字段名称或者组合索引名称
+     * @param segments 分段数
+     * @return 字段映射
+     */
+    private FieldMapping<V> newFieldMapping(String name, int segments) {
+        String[] names = compositeIndexes.get(name);
+        if (names != null) {
+            MethodWrapper[] methods = new MethodWrapper[names.length];
+            for (int i = 0; i < names.length; ++i) {
+                methods[i] = getterMethods.get(names[i]);
+            }
+            return new FieldMapping<>(methods, segments);
+        }
+        Function<? super V, ?> extractor = derivedIndexes.get(name);
+        if (extractor != null) {
+            return FieldMapping.derivedMapping(extractor, segments);
+        }
+        if (name.startsWith(PREFIX_MAPPING)) {
+            String field = name.substring(PREFIX_MAPPING.length());
+            return FieldMapping.prefixMapping(getterMethods.get(field), segments, prefixFields.get(field));
+        }
+        return new FieldMapping<>(getterMethods.get(name), segments, sortedFields.contains(name));
+    }
+
+    /**
+     * 构建字段与缓存值之间的映射关系
+     *
+     * @param name 字段名称
+     * @throws IllegalArgumentException 如果类型V中不存在传入的字段
+     * @throws IllegalArgumentException 如果传入的字段没有相应的getter方法
+     * @throws RuntimeException         如果反射调用失败
+     */
+    public void mappingValues(String name) {
+        mappingValues(generation.get(), name);
+    }
+
+    private FieldMapping<V> mappingValues(Generation<V> gen, String name) {
+        if (name.startsWith(PREFIX_MAPPING)) {
+            checkArgument(prefixFields.containsKey(name.substring(PREFIX_MAPPING.length())),
+                    "Prefix index %s is not declared", name);
+        } else if (!compositeIndexes.containsKey(name) && !derivedIndexes.containsKey(name)) {
+            checkArgument(getterMethods.containsKey(name), "Field %s is not exist", name);
+            checkNotNull(getterMethods.get(name), "Field %s don't have getter method", name);
+        }
+
+        // 每个字段对应一个Future，只有成功放入Future的线程负责构建映射，
+        // 其他线程阻塞等待构建完成后共享同一个映射
+        CompletableFuture<FieldMapping<V>> future = gen.mapping.get(name);
+        if (future == null) {
+            CompletableFuture<FieldMapping<V>> created = new CompletableFuture<>();
+            if ((future = gen.mapping.putIfAbsent(name, created)) == null) {
+                future = created;
+                try {
+                    for (boolean done = false; !done; ) {
+                        long replacements = gen.replacements;
+                        FieldMapping<V> map = newFieldMapping(name, gen.segments());
+                        int[] built = buildMapping(gen, map);
+                        // 构建期间可能有新的条目被追加，在写锁内补齐后再发布，之后的修改由写线程维护。
+                        // 如果构建期间有条目的值被原地替换，那么映射可能使用了替换前的值，需要重新构建
+                        writeLock.lock();
+                        try {
+                            if (replacements == gen.replacements) {
+                                for (int i = 0; i < built.length; ++i) {
+                                    map.addAll(i, gen.values[i], built[i]);
+                                }
+                                created.complete(map);
+                                done = true;
+                            }
+                        } finally {
+                            writeLock.unlock();
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // 构建失败时移除Future，之后的查询可以重试
+                    gen.mapping.remove(name, created);
+                    created.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 按分段并行构建字段映射
+     *
+     * @param gen 代
+     * @param map 空的字段映射
+     * @return 每个分段已经加入映射的条目数
+     */
+    private int[] buildMapping(Generation<V> gen, FieldMapping<V> map) {
+        int[] built = new int[gen.segments()];
+        forEachSegment(gen.segments(), i -> built[i] = map.addAll(i, gen.values[i], 0));
+        return built;
+    }
+
+    /**
+     * 在新的一代发布之前构建给定字段的映射，不同字段之间以及同一字段的不同分段之间均并行构建
+     *
+     * @param gen   尚未发布的代
+     * @param names 字段名称
+     */
+    private void buildMappings(Generation<V> gen, Collection<String> names) {
+        if (names.isEmpty()) {
+            return;
+        }
+        inPool(() -> names.parallelStream().forEach(name -> {
+            FieldMapping<V> map = newFieldMapping(name, gen.segments());
+            buildMapping(gen, map);
+            gen.putMapping(name, map);
+        }));
+    }
+
+    /**
+     * 对每个分段执行任务，分段数大于1时在ForkJoinPool中并行执行
+     *
+     * @param segments 分段数
+     * @param task     任务，参数为分段下标
+     */
+    private void forEachSegment(int segments, IntConsumer task) {
+        if (segments == 1) {
+            task.accept(0);
+        } else {
+            inPool(() -> IntStream.range(0, segments).parallel().forEach(task));
+        }
+    }
+
+    /**
+     * 在{@link #pool}中执行并行任务。并行流在调用线程所属的ForkJoinPool中执行，
+     * 因此如果调用线程不属于此线程池，那么将任务提交到线程池中并等待完成。
+     *
+     * @param task 并行任务
+     */
+    private void inPool(Runnable task) {
+        if (pool == ForkJoinPool.commonPool() || ForkJoinTask.getPool() == pool) {
+            task.run();
+        } else {
+            pool.submit(task).join();
+        }
+    }
+
+    /**
+     * 返回给定字段以及字段值对应的记录。
+     * 注意：如果没有给定字段值对应的记录，那么返回Collections.emptyList()
+     *
+     * @param field  字段名称
+     * @param values 字段值列表
+     * @return 对应的记录
+     */
+    public List<V> getMappingValues(String field, Object... values) {
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+
+        // 整个查询过程只使用同一代的数据
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        long now = System.nanoTime();
+        final int segments = gen.segments();
+        // 如果不提供key，那么返回全部值
+        if (values.length == 0) {
+            if (segments > 1 && gen.size >= PARALLEL_THRESHOLD) {
+                return Collections.unmodifiableList(parallelCollect(segments, i -> gen.values[i], 1, version, now));
+            }
+
+            List<V> ret = new ArrayList<>(gen.size);
+            for (EntryList<V> entries : gen.values) {
+                collect(ret, entries, version, now);
+            }
+            return Collections.unmodifiableList(ret);
+        }
+
+        checkIndexed(field);
+        if (resultCache != null) {
+            List<V> cached = resultCache.get(field, values, gen, version, now);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        FieldMapping<V> map = gen.getMapping(field);
+        if (map == null) {
+            map = mappingValues(gen, field);
+        }
+
+        // 先取出所有分段中字段值对应的条目列表，用于估计结果数量
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        EntryList<V>[] postings = new EntryList[segments * values.length];
+        int estimate = 0;
+        for (int i = 0; i < values.length; ++i) {
+            for (int j = 0; j < segments; ++j) {
+                EntryList<V> entries = map.get(j, values[i]);
+                if (entries != null) {
+                    postings[j * values.length + i] = entries;
+                    estimate += entries.size();
+                }
+            }
+        }
+        if (estimate == 0) {
+            return Collections.emptyList();
+        }
+        if (resultCache != null && estimate < PARALLEL_THRESHOLD) {
+            return memoize(gen, field, values, postings, version, now);
+        }
+
+        List<V> retVal;
+        if (segments > 1 && estimate >= PARALLEL_THRESHOLD) {
+            retVal = parallelCollect(segments, i -> postings[i], values.length, version, now);
+        } else {
+            retVal = new ArrayList<V>();
+            for (int i = 0; i < values.length; ++i) {
+                for (int j = 0; j < segments; ++j) {
+                    collect(retVal, postings[j * values.length + i], version, now);
+                }
+            }
+        }
+        if (retVal.size() == 0) {
+            return Collections.emptyList();
+        }
+
+        return Collections.unmodifiableList(retVal);
+    }
+
+    /**
+     * 收集结果并放入结果缓存，只在计算期间数据没有变化时放入
+     *
+     * @param gen      代
+     * @param field    字段名称
+     * @param values   字段值列表
+     * @param postings 条目列表，排列方式与{@link #getMappingValues(String, Object...)}相同
+     * @param version  查询版本
+     * @param now      当前时间
+     * @return 不可变的结果
+     */
+    private List<V> memoize(Generation<V> gen, String field, Object[] values, EntryList<V>[] postings,
+                            long version, long now) {
+        List<ReferenceEntry<V>> entries = new ArrayList<>();
+        List<V> vals = new ArrayList<>();
+        for (int i = 0; i < values.length; ++i) {
+            for (int j = 0, segments = gen.segments(); j < segments; ++j) {
+                EntryList<V> list = postings[j * values.length + i];
+                if (list == null) {
+                    continue;
+                }
+                for (ReferenceEntry<V> entry : list) {
+                    V val;
+                    if (isAlive(entry, version, now) && (val = entry.getVal()) != null) {
+                        entry.setAccessTime(now);
+                        entries.add(entry);
+                        vals.add(val);
+                    }
+                }
+            }
+        }
+        List<V> retVal = vals.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(vals);
+        if (generation.get() == gen && gen.version == version) {
+            resultCache.put(field, values.clone(), gen, version, entries, retVal, now);
+        }
+        return retVal;
+    }
+
+    /**
+     * 返回同时满足所有字段条件的记录，即 where field1 = value1 and field2 = value2 ...
+     * <p>
+     * 每个分段先取出所有字段值对应的条目列表，如果任一为空则跳过此分段；否则从条目最少的列表出发，
+     * 按照条目数从少到多依次校验其余字段的值，因此查询代价只与最有选择性的条件相关，
+     * 不会物化其他字段的结果。
+     * 注意：如果没有满足条件的记录，那么返回Collections.emptyList()
+     *
+     * @param conditions 字段名称到字段值的映射，为空时返回全部值
+     * @return 对应的记录
+     */
+    public List<V> getMappingValues(Map<String, ?> conditions) {
+        checkNotNull(conditions, "conditions");
+        if (conditions.isEmpty()) {
+            return getMappingValues((String) null);
+        }
+        if (conditions.size() == 1) {
+            Map.Entry<String, ?> e = conditions.entrySet().iterator().next();
+            Object value = e.getValue();
+            return getMappingValues(e.getKey(), value);
+        }
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        final Conjunction<V> conjunction = conjunction(gen, conditions);
+        if (conjunction.estimate == 0) {
+            return Collections.emptyList();
+        }
+
+        final int segments = gen.segments();
+        List<V> retVal;
+        if (segments > 1 && conjunction.estimate >= PARALLEL_THRESHOLD) {
+            @SuppressWarnings({"rawtypes", "unchecked"})
+            List<V>[] parts = new List[segments];
+            forEachSegment(segments, i -> {
+                List<V> part = new ArrayList<>();
+                intersect(conjunction, i, version, now, (entry, val) -> {
+                    entry.setAccessTime(now);
+                    part.add(val);
+                });
+                parts[i] = part;
+            });
+            retVal = new ArrayList<>();
+            for (List<V> part : parts) {
+                retVal.addAll(part);
+            }
+        } else {
+            List<V> ret = retVal = new ArrayList<>();
+            for (int i = 0; i < segments; ++i) {
+                intersect(conjunction, i, version, now, (entry, val) -> {
+                    entry.setAccessTime(now);
+                    ret.add(val);
+                });
+            }
+        }
+        if (retVal.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(retVal);
+    }
+
+    /**
+     * 返回字段值在闭区间[from, to]内的记录，参见{@link #getRangeValues(String, Object, boolean, Object, boolean)}
+     *
+     * @param field 有序字段名称
+     * @param from  下界，为null时不限制下界
+     * @param to    上界，为null时不限制上界
+     * @return 对应的记录
+     */
+    public List<V> getRangeValues(String field, Object from, Object to) {
+        return getRangeValues(field, from, true, to, true);
+    }
+
+    /**
+     * 返回字段值在给定范围内的记录，字段值为null的记录不在任何范围内。
+     * 每个分段内的结果按照字段值升序排列，分段之间的顺序不作保证。
+     * 注意：如果没有满足条件的记录，那么返回Collections.emptyList()
+     *
+     * @param field         有序字段名称
+     * @param from          下界，为null时不限制下界
+     * @param fromInclusive 是否包含下界
+     * @param to            上界，为null时不限制上界
+     * @param toInclusive   是否包含上界
+     * @return 对应的记录
+     * @throws IllegalArgumentException 如果字段没有声明为有序字段
+     */
+    public List<V> getRangeValues(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        final FieldMapping<V> map = sortedMapping(gen, field);
+        final int segments = gen.segments();
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        final Collection<EntryList<V>>[] ranges = new Collection[segments];
+        int estimate = 0;
+        for (int i = 0; i < segments; ++i) {
+            ranges[i] = map.range(i, from, fromInclusive, to, toInclusive);
+            for (EntryList<V> entries : ranges[i]) {
+                estimate += entries.size();
+            }
+        }
+        if (estimate == 0) {
+            return Collections.emptyList();
+        }
+
+        List<V> retVal;
+        if (segments > 1 && estimate >= PARALLEL_THRESHOLD) {
+            @SuppressWarnings({"rawtypes", "unchecked"})
+            List<V>[] parts = new List[segments];
+            forEachSegment(segments, i -> {
+                List<V> part = new ArrayList<>();
+                for (EntryList<V> entries : ranges[i]) {
+                    collect(part, entries, version, now);
+                }
+                parts[i] = part;
+            });
+            retVal = new ArrayList<>(estimate);
+            for (List<V> part : parts) {
+                retVal.addAll(part);
+            }
+        } else {
+            retVal = new ArrayList<>(estimate);
+            for (Collection<EntryList<V>> range : ranges) {
+                for (EntryList<V> entries : range) {
+                    collect(retVal, entries, version, now);
+                }
+            }
+        }
+        if (retVal.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(retVal);
+    }
+
+    /**
+     * 返回给定字段以prefix开头的记录，按照字段值升序排列，字段必须声明了前缀索引
+     * 注意：如果没有对应的记录，那么返回Collections.emptyList()
+     *
+     * @param field  字段名称
+     * @param prefix 前缀，为空字符串时返回字段值不为null的全部记录
+     * @return 对应的记录
+     * @throws IllegalArgumentException 如果字段没有声明前缀索引
+     */
+    public List<V> getPrefixValues(String field, String prefix) {
+        return getPrefixValues(field, prefix, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 返回给定字段以prefix开头的前limit条记录，按照字段值升序排列。
+     * 每个分段只遍历以prefix开头的字段值，取得limit条记录后停止，不会调用getter方法。
+     * 如果声明前缀索引时忽略大小写，那么prefix同样忽略大小写
+     *
+     * @param field  字段名称
+     * @param prefix 前缀
+     * @param limit  最多返回的记录数
+     * @return 对应的记录
+     * @throws IllegalArgumentException 如果字段没有声明前缀索引
+     */
+    public List<V> getPrefixValues(String field, String prefix, int limit) {
+        checkNotNull(prefix, "prefix");
+        checkArgument(prefixFields.containsKey(field), "Field %s don't have prefix index", field);
+        checkArgument(limit > 0, "limit must be positive: %s", limit);
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        final int segments = gen.segments();
+        final FieldMapping<V> map = resolveMapping(gen, PREFIX_MAPPING + field);
+        final String key = map.normalize(prefix);
+
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        List<Ranked<V>>[] parts = new List[segments];
+        runSegments(segments, limit, i -> {
+            List<Ranked<V>> part = new ArrayList<>(Math.min(limit, 64));
+            for (Map.Entry<Object, EntryList<V>> e : map.prefixed(i, key).entrySet()) {
+                if (!((String) e.getKey()).startsWith(key)
+                        || take(part, e.getKey(), e.getValue(), null, version, now, limit)) {
+                    break;
+                }
+            }
+            parts[i] = part;
+        });
+
+        List<Ranked<V>> ranked = new ArrayList<>();
+        for (List<Ranked<V>> part : parts) {
+            ranked.addAll(part);
+        }
+        if (ranked.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (segments > 1) {
+            Comparator<Object> keyOrder = keyOrder(true);
+            ranked.sort((a, b) -> keyOrder.compare(a.key, b.key));
+        }
+        List<V> retVal = new ArrayList<>(Math.min(limit, ranked.size()));
+        for (Ranked<V> r : ranked.subList(0, Math.min(limit, ranked.size()))) {
+            r.entry.setAccessTime(now);
+            retVal.add(r.val);
+        }
+        return Collections.unmodifiableList(retVal);
+    }
+
+    /**
+     * 创建一个新的查询
+     *
+     * @return 查询
+     */
+    public Query<V> query() {
+        return new Query<>(this);
+    }
+
+    /**
+     * 执行查询条件，参见{@link Query#list()}
+     *
+     * @param condition 条件，为null时返回全部值
+     * @return 满足条件的记录
+     */
+    List<V> select(Condition condition) {
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        final QueryPlan<V> plan = plan(gen, condition);
+        if (plan.estimate() == 0) {
+            return Collections.emptyList();
+        }
+
+        final int segments = gen.segments();
+        final Predicate<ReferenceEntry<V>> alive = entry -> isAlive(entry, version, now);
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        final List<V>[] parts = new List[segments];
+        runSegments(segments, plan.estimate(), i -> {
+            List<V> part = new ArrayList<>();
+            plan.forEach(i, alive, (entry, val) -> {
+                entry.setAccessTime(now);
+                part.add(val);
+            });
+            parts[i] = part;
+        });
+
+        int size = 0;
+        for (List<V> part : parts) {
+            size += part.size();
+        }
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+        List<V> retVal = new ArrayList<>(size);
+        for (List<V> part : parts) {
+            retVal.addAll(part);
+        }
+        return Collections.unmodifiableList(retVal);
+    }
+
+    /**
+     * 执行查询条件，只返回记录数，参见{@link Query#count()}
+     *
+     * @param condition 条件，为null时返回全部记录数
+     * @return 记录数
+     */
+    int selectCount(Condition condition) {
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        final QueryPlan<V> plan = plan(gen, condition);
+        final Predicate<ReferenceEntry<V>> alive = entry -> isAlive(entry, version, now);
+        final int[] parts = new int[gen.segments()];
+        runSegments(gen.segments(), plan.estimate(), i -> plan.forEach(i, alive, (entry, val) -> ++parts[i]));
+        int count = 0;
+        for (int part : parts) {
+            count += part;
+        }
+        return count;
+    }
+
+    /**
+     * 返回查询条件在当前代上的执行计划，参见{@link Query#explain()}
+     *
+     * @param condition 条件
+     * @return 执行计划
+     */
+    String explain(Condition condition) {
+        StringBuilder sb = new StringBuilder();
+        plan(generation.get(), condition).explain(sb, 0);
+        return sb.toString();
+    }
+
+    /**
+     * 为查询条件生成执行计划，没有映射可用时遍历全部条目
+     *
+     * @param gen       代
+     * @param condition 条件，为null时不限制
+     * @return 执行计划
+     */
+    private QueryPlan<V> plan(Generation<V> gen, Condition condition) {
+        QueryPlan<V> plan = indexPlan(gen, condition);
+        if (plan != null) {
+            return plan;
+        }
+        return new QueryPlan.Scan<>(condition, gen.values, gen.size, condition == null ? null : compile(condition));
+    }
+
+    /**
+     * 为查询条件生成使用映射的执行计划。等值条件使用字段映射，有序字段的范围条件使用有序映射；
+     * and条件选择估计记录数最少的子条件作为驱动，其余子条件作为过滤；
+     * or条件只有所有子条件都可以使用映射时才合并各自的结果。
+     * 只使用已经构建或者声明的映射，参见{@link #plannedMapping(Generation, String)}
+     *
+     * @param gen       代
+     * @param condition 条件
+     * @return 执行计划，如果没有映射可用，返回null
+     */
+    private QueryPlan<V> indexPlan(Generation<V> gen, Condition condition) {
+        if (condition instanceof Condition.In) {
+            Condition.In in = (Condition.In) condition;
+            checkIndexed(in.field);
+            FieldMapping<V> map = plannedMapping(gen, in.field);
+            return map == null ? null : new QueryPlan.IndexLookup<>(in, map, gen.segments());
+        }
+        if (condition instanceof Condition.Range) {
+            Condition.Range range = (Condition.Range) condition;
+            getter(range.field);
+            return sortedFields.contains(range.field)
+                    ? new QueryPlan.RangeScan<>(range, sortedMapping(gen, range.field), gen.segments()) : null;
+        }
+        if (condition instanceof Condition.And) {
+            List<Condition> children = ((Condition.And) condition).conditions;
+            QueryPlan<V> driver = null;
+            int index = -1;
+            for (int i = 0; i < children.size(); ++i) {
+                QueryPlan<V> plan = indexPlan(gen, children.get(i));
+                if (plan != null && (driver == null || plan.estimate() < driver.estimate())) {
+                    driver = plan;
+                    index = i;
+                }
+            }
+            if (driver == null || children.size() == 1) {
+                return driver;
+            }
+            List<Condition> rest = new ArrayList<>(children);
+            rest.remove(index);
+            Condition residual = rest.size() == 1 ? rest.get(0) : new Condition.And(rest);
+            return new QueryPlan.Filter<>(residual, driver, compile(residual));
+        }
+        if (condition instanceof Condition.Or) {
+            List<Condition> children = ((Condition.Or) condition).conditions;
+            List<QueryPlan<V>> plans = new ArrayList<>(children.size());
+            List<Predicate<V>> predicates = new ArrayList<>(children.size());
+            for (Condition child : children) {
+                QueryPlan<V> plan = indexPlan(gen, child);
+                if (plan == null) {
+                    return null;
+                }
+                plans.add(plan);
+                predicates.add(compile(child));
+            }
+            return new QueryPlan.Union<>(condition, plans, predicates);
+        }
+        return null;
+    }
+
+    /**
+     * 获取查询计划可以使用的映射。已经构建的映射直接使用；通过{@link CacheBuilder#indexFields(String...)}
+     * 或者{@link CacheBuilder#sortedFields(String...)}声明的映射在需要时构建；
+     * 其他字段不会为了生成计划而构建映射，由调用者改为过滤或者遍历
+     *
+     * @param gen  代
+     * @param name 映射名称
+     * @return 映射，如果没有构建也没有声明，返回null
+     */
+    private FieldMapping<V> plannedMapping(Generation<V> gen, String name) {
+        FieldMapping<V> map = gen.getMapping(name);
+        if (map != null) {
+            return map;
+        }
+        return indexFields.contains(name) || sortedFields.contains(name) ? mappingValues(gen, name) : null;
+    }
+
+    /**
+     * 将查询条件编译为对值的判断，通过getter方法获取字段值
+     *
+     * @param condition 条件
+     * @return 判断
+     */
+    private Predicate<V> compile(Condition condition) {
+        if (condition instanceof Condition.In) {
+            final Function<V, Object> key = keyFunction(((Condition.In) condition).field);
+            final Object[] values = ((Condition.In) condition).values;
+            if (values.length == 1) {
+                final Object value = values[0];
+                return val -> Objects.equals(key.apply(val), value);
+            }
+            final Set<Object> set = new HashSet<>(Arrays.asList(values));
+            return val -> set.contains(key.apply(val));
+        }
+        if (condition instanceof Condition.Range) {
+            final Condition.Range range = (Condition.Range) condition;
+            final MethodWrapper getter = getter(range.field);
+            Class<?> type = getter.getReturnType();
+            checkArgument(type.isPrimitive() || Comparable.class.isAssignableFrom(type),
+                    "Field %s is not comparable", range.field);
+            return val -> inRange(FieldMapping.invoke(getter, val), range);
+        }
+        if (condition instanceof Condition.Not) {
+            return compile(((Condition.Not) condition).condition).negate();
+        }
+        List<Condition> children = ((Condition.Composite) condition).conditions;
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        final Predicate<V>[] predicates = new Predicate[children.size()];
+        for (int i = 0; i < predicates.length; ++i) {
+            predicates[i] = compile(children.get(i));
+        }
+        if (condition instanceof Condition.And) {
+            return val -> {
+                for (Predicate<V> predicate : predicates) {
+                    if (!predicate.test(val)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+        }
+        return val -> {
+            for (Predicate<V> predicate : predicates) {
+                if (predicate.test(val)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * 判断字段值是否在范围内。与有序映射一致，类型不匹配的边界视为不满足条件
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean inRange(Object key, Condition.Range range) {
+        if (key == null) {
+            return false;
+        }
+        Comparable<Object> k = (Comparable<Object>) key;
+        try {
+            if (range.from != null) {
+                int c = k.compareTo(range.from);
+                if (c < 0 || (c == 0 && !range.fromInclusive)) {
+                    return false;
+                }
+            }
+            if (range.to != null) {
+                int c = k.compareTo(range.to);
+                if (c > 0 || (c == 0 && !range.toInclusive)) {
+                    return false;
+                }
+            }
+        } catch (ClassCastException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 返回字段当前的最小值，忽略null。有序字段直接从有序映射的一端获得，否则遍历所有记录
+     *
+     * @param field 字段名称
+     * @return 最小值，如果没有非null的字段值，返回null
+     */
+    public <K> K min(String field) {
+        return min(field, Collections.emptyMap());
+    }
+
+    /**
+     * 返回字段当前的最大值，忽略null。有序字段直接从有序映射的一端获得，否则遍历所有记录
+     *
+     * @param field 字段名称
+     * @return 最大值，如果没有非null的字段值，返回null
+     */
+    public <K> K max(String field) {
+        return max(field, Collections.emptyMap());
+    }
+
+    /**
+     * 返回满足所有字段条件的记录中字段的最小值，忽略null
+     *
+     * @param field      字段名称，字段类型必须为基本类型或者实现{@link Comparable}
+     * @param conditions 字段名称到字段值的映射，为空时不限制
+     * @return 最小值，如果没有非null的字段值，返回null
+     */
+    public <K> K min(String field, Map<String, ?> conditions) {
+        return aggregateExtremum(field, conditions, false);
+    }
+
+    /**
+     * 返回满足所有字段条件的记录中字段的最大值，忽略null
+     *
+     * @param field      字段名称，字段类型必须为基本类型或者实现{@link Comparable}
+     * @param conditions 字段名称到字段值的映射，为空时不限制
+     * @return 最大值，如果没有非null的字段值，返回null
+     */
+    public <K> K max(String field, Map<String, ?> conditions) {
+        return aggregateExtremum(field, conditions, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <K> K aggregateExtremum(String field, Map<String, ?> conditions, boolean max) {
+        final MethodWrapper getter = getter(field);
+        checkNotNull(conditions, "conditions");
+        if (conditions.isEmpty() && sortedFields.contains(field)) {
+            return extremum(field, max);
+        }
+        final Comparator<Object> keyOrder = keyOrder(!max);
+        final Object[] parts = new Object[concurrencyLevel];
+        aggregate(conditions, i -> (entry, val) -> {
+            Object key = FieldMapping.invoke(getter, val);
+            if (key != null && (parts[i] == null || keyOrder.compare(key, parts[i]) < 0)) {
+                parts[i] = key;
+            }
+        });
+        Object ret = null;
+        for (Object part : parts) {
+            if (part != null && (ret == null || keyOrder.compare(part, ret) < 0)) {
+                ret = part;
+            }
+        }
+        return (K) ret;
+    }
+
+    /**
+     * 返回满足所有字段条件的记录中数值字段的和，忽略null。字段为整数类型时返回{@link Long}，否则返回{@link Double}
+     *
+     * @param field      数值字段名称
+     * @param conditions 字段名称到字段值的映射，为空时不限制
+     * @return 和
+     */
+    public Number sum(String field, Map<String, ?> conditions) {
+        final MethodWrapper getter = getter(field);
+        checkNotNull(conditions, "conditions");
+        Class<?> type = getter.getReturnType();
+        checkArgument(Number.class.isAssignableFrom(type) || (type.isPrimitive() && type != boolean.class
+                && type != char.class), "Field %s is not numeric", field);
+        if (type == long.class || type == int.class || type == short.class || type == byte.class
+                || type == Long.class || type == Integer.class || type == Short.class || type == Byte.class) {
+            final long[] parts = new long[concurrencyLevel];
+            aggregate(conditions, i -> (entry, val) -> {
+                Object v = FieldMapping.invoke(getter, val);
+                if (v != null) {
+                    parts[i] += ((Number) v).longValue();
+                }
+            });
+            long sum = 0;
+            for (long part : parts) {
+                sum += part;
+            }
+            return sum;
+        }
+        final double[] parts = new double[concurrencyLevel];
+        aggregate(conditions, i -> (entry, val) -> {
+            Object v = FieldMapping.invoke(getter, val);
+            if (v != null) {
+                parts[i] += ((Number) v).doubleValue();
+            }
+        });
+        double sum = 0;
+        for (double part : parts) {
+            sum += part;
+        }
+        return sum;
+    }
+
+    /**
+     * 按分段遍历满足所有条件的记录，不构建结果列表。每个分段使用各自的consumer，
+     * 因此可以将中间结果保存在以分段下标为下标的数组中，最后再合并
+     *
+     * @param conditions 字段名称到字段值的映射，为空时不限制
+     * @param consumers  参数为分段下标，返回此分段的consumer
+     */
+    private void aggregate(Map<String, ?> conditions, IntFunction<BiConsumer<ReferenceEntry<V>, V>> consumers) {
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        final Conjunction<V> conjunction = conditions.isEmpty() ? null : conjunction(gen, conditions);
+        if (conjunction != null && conjunction.estimate == 0) {
+            return;
+        }
+        runSegments(gen.segments(), conjunction == null ? gen.size : conjunction.estimate,
+                i -> forEachMatch(gen, conjunction, i, version, now, consumers.apply(i)));
+    }
+
+    /**
+     * 返回给定字段值对应的记录数，不构建结果列表
+     *
+     * @param field  字段名称
+     * @param values 字段值列表，为空时返回全部记录数
+     * @return 记录数
+     */
+    public int count(String field, Object... values) {
+        if (values.length == 0) {
+            return count(Collections.emptyMap());
+        }
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        final FieldMapping<V> map = mapping(gen, field);
+        int count = 0;
+        for (int i = 0; i < gen.segments(); ++i) {
+            for (Object value : values) {
+                count += countAlive(map.get(i, value), version, now);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 返回满足所有字段条件的记录数，不构建结果列表
+     *
+     * @param conditions 字段名称到字段值的映射，为空时返回全部记录数
+     * @return 记录数
+     */
+    public int count(Map<String, ?> conditions) {
+        checkNotNull(conditions, "conditions");
+        final int[] parts = new int[concurrencyLevel];
+        aggregate(conditions, i -> (entry, val) -> ++parts[i]);
+        int count = 0;
+        for (int part : parts) {
+            count += part;
+        }
+        return count;
+    }
+
+    /**
+     * 返回字段当前所有不同的值，只包括至少有一个未过期记录的值，直接从字段映射获得
+     *
+     * @param field 字段名称
+     * @return 字段值集合，可能包括null
+     */
+    public <K> Set<K> distinctKeys(String field) {
+        Map<K, Integer> counts = countBy(field);
+        return counts.keySet();
+    }
+
+    /**
+     * 按照字段值分组计数，即 select field, count(*) from table group by field，直接从字段映射获得
+     *
+     * @param field 字段名称
+     * @return 字段值到记录数的映射，不包括记录数为0的字段值，可能包括null键
+     */
+    @SuppressWarnings("unchecked")
+    public <K> Map<K, Integer> countBy(String field) {
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        final FieldMapping<V> map = mapping(gen, field);
+        Map<K, Integer> counts = new HashMap<>();
+        for (int i = 0; i < gen.segments(); ++i) {
+            map.forEach(i, (key, entries) -> {
+                int n = countAlive(entries, version, now);
+                if (n > 0) {
+                    counts.merge((K) key, n, Integer::sum);
+                }
+            });
+        }
+        return counts;
+    }
+
+    private int countAlive(EntryList<V> entries, long version, long now) {
+        if (entries == null) {
+            return 0;
+        }
+        int n = 0;
+        for (ReferenceEntry<V> entry : entries) {
+            if (isAlive(entry, version, now)) {
+                ++n;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 对分段中每个可见、未过期并且满足所有条件的条目调用consumer
+     *
+     * @param gen         代
+     * @param conjunction 条件的合取，为null时不限制
+     * @param segment     分段下标
+     * @param version     查询版本
+     * @param now         当前时间
+     * @param consumer    参数为条目以及条目的值
+     */
+    private void forEachMatch(Generation<V> gen, Conjunction<V> conjunction, int segment, long version, long now,
+                              BiConsumer<ReferenceEntry<V>, V> consumer) {
+        if (conjunction != null) {
+            intersect(conjunction, segment, version, now, consumer);
+            return;
+        }
+        for (ReferenceEntry<V> entry : gen.values[segment]) {
+            V val;
+            if (isAlive(entry, version, now) && (val = entry.getVal()) != null) {
+                consumer.accept(entry, val);
+            }
+        }
+    }
+
+    /**
+     * 对每个分段执行任务，分段数大于1并且涉及的条目数达到{@link #PARALLEL_THRESHOLD}时并行执行
+     *
+     * @param segments 分段数
+     * @param work     估计涉及的条目数
+     * @param task     任务，参数为分段下标
+     */
+    private void runSegments(int segments, int work, IntConsumer task) {
+        if (segments > 1 && work >= PARALLEL_THRESHOLD) {
+            forEachSegment(segments, task);
+        } else {
+            for (int i = 0; i < segments; ++i) {
+                task.accept(i);
+            }
+        }
+    }
+
+    private MethodWrapper getter(String field) {
+        checkArgument(getterMethods.containsKey(field), "Field %s is not exist", field);
+        return checkNotNull(getterMethods.get(field), "Field %s don't have getter method", field);
+    }
+
+    /**
+     * 校验名称为字段或者派生索引
+     */
+    private void checkIndexed(String name) {
+        checkArgument(getterMethods.containsKey(name) || derivedIndexes.containsKey(name),
+                "Field %s is not exist", name);
+    }
+
+    /**
+     * 获取计算字段值或者派生索引键的函数
+     */
+    private Function<V, Object> keyFunction(String name) {
+        @SuppressWarnings("unchecked")
+        Function<V, Object> extractor = (Function<V, Object>) derivedIndexes.get(name);
+        if (extractor != null) {
+            return extractor;
+        }
+        MethodWrapper getter = getter(name);
+        return val -> FieldMapping.invoke(getter, val);
+    }
+
+    private FieldMapping<V> mapping(Generation<V> gen, String field) {
+        checkIndexed(field);
+        FieldMapping<V> map = gen.getMapping(field);
+        return map != null ? map : mappingValues(gen, field);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <K> K extremum(String field, boolean max) {
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        final FieldMapping<V> map = sortedMapping(gen, field);
+        Comparable<Object> ret = null;
+        for (int i = 0; i < gen.segments(); ++i) {
+            // 每个分段从一端开始查找第一个存在可见条目的字段值，超过已有结果时停止
+            for (Map.Entry<Object, EntryList<V>> e : map.ordered(i, max).entrySet()) {
+                if (ret != null) {
+                    int c = ret.compareTo(e.getKey());
+                    if (max ? c >= 0 : c <= 0) {
+                        break;
+                    }
+                }
+                if (anyAlive(e.getValue(), version, now)) {
+                    ret = (Comparable<Object>) e.getKey();
+                    break;
+                }
+            }
+        }
+        return (K) ret;
+    }
+
+    private boolean anyAlive(EntryList<V> entries, long version, long now) {
+        for (ReferenceEntry<V> entry : entries) {
+            if (isAlive(entry, version, now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private FieldMapping<V> sortedMapping(Generation<V> gen, String field) {
+        checkArgument(sortedFields.contains(field), "Field %s is not sorted", field);
+        FieldMapping<V> map = gen.getMapping(field);
+        return map != null ? map : mappingValues(gen, field);
+    }
+
+    /**
+     * 将查询条件转换为映射名称到键的映射。条件覆盖组合索引的全部字段时，使用组合索引代替这些字段，
+     * 优先使用字段较多的组合索引
+     *
+     * @param conditions 字段名称到字段值的映射
+     * @return 映射名称到键的映射
+     */
+    private Map<String, Object> resolveConditions(Map<String, ?> conditions) {
+        for (String field : conditions.keySet()) {
+            checkIndexed(field);
+        }
+        Map<String, Object> remaining = new LinkedHashMap<>(conditions);
+        Map<String, Object> resolved = new LinkedHashMap<>();
+        for (Map.Entry<String, String[]> e : compositeIndexes.entrySet()) {
+            String[] names = e.getValue();
+            boolean covered = true;
+            for (int i = 0; i < names.length && covered; ++i) {
+                covered = remaining.containsKey(names[i]);
+            }
+            if (covered) {
+                Object[] key = new Object[names.length];
+                for (int i = 0; i < names.length; ++i) {
+                    key[i] = remaining.remove(names[i]);
+                }
+                resolved.put(e.getKey(), Arrays.asList(key));
+            }
+        }
+        resolved.putAll(remaining);
+        return resolved;
+    }
+
+    /**
+     * 解析查询条件，取出每个条件在所有分段中的条目列表，并估计结果数量
+     *
+     * @param gen        代
+     * @param conditions 字段名称到字段值的映射
+     * @return 条件的合取
+     */
+    private Conjunction<V> conjunction(Generation<V> gen, Map<String, ?> conditions) {
+        final Map<String, Object> resolved = resolveConditions(conditions);
+        final int n = resolved.size();
+        final int segments = gen.segments();
+        Conjunction<V> conjunction = new Conjunction<>(n, segments);
+        int k = 0;
+        for (Map.Entry<String, Object> e : resolved.entrySet()) {
+            FieldMapping<V> map = gen.getMapping(e.getKey());
+            conjunction.maps[k] = map != null ? map : mappingValues(gen, e.getKey());
+            conjunction.keys[k++] = e.getValue();
+        }
+
+        // 估计的结果数量为每个分段最短的条目列表长度之和
+        for (int i = 0; i < segments; ++i) {
+            int min = Integer.MAX_VALUE;
+            for (int j = 0; j < n; ++j) {
+                EntryList<V> entries = conjunction.maps[j].get(i, conjunction.keys[j]);
+                conjunction.postings[i * n + j] = entries;
+                min = Math.min(min, entries == null ? 0 : entries.size());
+            }
+            conjunction.estimate += min;
+        }
+        return conjunction;
+    }
+
+    /**
+     * 求分段中所有条件条目列表的交集，对每个可见、未过期并且满足所有条件的条目调用consumer
+     *
+     * @param conjunction 条件的合取
+     * @param segment     分段下标
+     * @param version     查询版本
+     * @param now         当前时间
+     * @param consumer    参数为条目以及条目的值
+     */
+    private void intersect(Conjunction<V> conjunction, int segment, long version, long now,
+                           BiConsumer<ReferenceEntry<V>, V> consumer) {
+        final FieldMapping<V>[] maps = conjunction.maps;
+        final Object[] keys = conjunction.keys;
+        final EntryList<V>[] postings = conjunction.postings;
+        final int n = maps.length;
+        final int base = segment * n;
+        // 按照条目数从少到多排序，第一个作为遍历的列表，其余依次校验
+        int[] order = new int[n];
+        for (int j = 0; j < n; ++j) {
+            EntryList<V> entries = postings[base + j];
+            if (entries == null) {
+                return;
+            }
+            int size = entries.size();
+            int i = j;
+            while (i > 0 && postings[base + order[i - 1]].size() > size) {
+                order[i] = order[i - 1];
+                --i;
+            }
+            order[i] = j;
+        }
+
+        for (ReferenceEntry<V> entry : postings[base + order[0]]) {
+            if (!isAlive(entry, version, now)) {
+                continue;
+            }
+            V val = entry.getVal();
+            if (val == null) {
+                continue;
+            }
+            boolean match = true;
+            for (int j = 1; j < n && match; ++j) {
+                match = Objects.equals(maps[order[j]].keyOf(val), keys[order[j]]);
+            }
+            if (match) {
+                consumer.accept(entry, val);
+            }
+        }
+    }
+
+    /**
+     * 返回满足所有字段条件的记录中按照给定字段排序后的一页，即
+     * select * from table where ... order by field asc|desc limit offset, limit
+     * <p>
+     * 排序字段为有序字段并且条件的选择性较低时，每个分段按照字段顺序遍历有序映射，
+     * 取得offset + limit个满足条件的记录后停止；否则每个分段遍历满足条件的记录，
+     * 使用大小为offset + limit的堆保留排在最前面的记录。各分段的结果合并排序后截取，
+     * 不会复制或者排序全部满足条件的记录。字段值为null的记录总是排在最后。
+     * 注意：如果没有满足条件的记录，那么返回Collections.emptyList()
+     *
+     * @param conditions 字段名称到字段值的映射，为空时不限制
+     * @param orderBy    排序字段，字段类型必须为基本类型或者实现{@link Comparable}
+     * @param ascending  是否升序
+     * @param offset     跳过的记录数
+     * @param limit      最多返回的记录数
+     * @return 对应的记录
+     */
+    public List<V> getOrderedValues(Map<String, ?> conditions, String orderBy, boolean ascending,
+                                    int offset, int limit) {
+        checkNotNull(conditions, "conditions");
+        final MethodWrapper getter = getter(orderBy);
+        checkArgument(offset >= 0, "offset must not be negative: %s", offset);
+        checkArgument(limit > 0, "limit must be positive: %s", limit);
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        final int segments = gen.segments();
+        final int m = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+        final Conjunction<V> conjunction = conditions.isEmpty() ? null : conjunction(gen, conditions);
+        if (conjunction != null && conjunction.estimate == 0) {
+            return Collections.emptyList();
+        }
+        final Comparator<Object> keyOrder = keyOrder(ascending);
+        final Comparator<Ranked<V>> rankOrder = (a, b) -> keyOrder.compare(a.key, b.key);
+
+        // 按照字段顺序遍历时期望访问 m * size / estimate 个条目，少于满足条件的条目数时使用有序映射
+        final FieldMapping<V> sorted = sortedFields.contains(orderBy) ? sortedMapping(gen, orderBy) : null;
+        final int matches = conjunction == null ? gen.size : conjunction.estimate;
+        final boolean walk = sorted != null && (long) m * gen.size <= (long) matches * matches;
+
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        List<Ranked<V>>[] parts = new List[segments];
+        IntConsumer task = i -> {
+            if (walk) {
+                List<Ranked<V>> part = new ArrayList<>(Math.min(m, 64));
+                for (Map.Entry<Object, EntryList<V>> e : sorted.ordered(i, !ascending).entrySet()) {
+                    if (take(part, e.getKey(), e.getValue(), conjunction, version, now, m)) {
+                        break;
+                    }
+                }
+                take(part, null, sorted.get(i, null), conjunction, version, now, m);
+                parts[i] = part;
+                return;
+            }
+
+            // 堆顶为已保留记录中排在最后的一个
+            PriorityQueue<Ranked<V>> heap = new PriorityQueue<>(Math.min(m, 64), rankOrder.reversed());
+            BiConsumer<ReferenceEntry<V>, V> consumer = (entry, val) -> {
+                Object key = FieldMapping.invoke(getter, val);
+                if (heap.size() < m) {
+                    heap.add(new Ranked<>(key, entry, val));
+                } else if (keyOrder.compare(key, heap.peek().key) < 0) {
+                    heap.poll();
+                    heap.add(new Ranked<>(key, entry, val));
+                }
+            };
+            forEachMatch(gen, conjunction, i, version, now, consumer);
+            parts[i] = new ArrayList<>(heap);
+        };
+        runSegments(segments, walk ? m : matches, task);
+
+        List<Ranked<V>> ranked = new ArrayList<>();
+        for (List<Ranked<V>> part : parts) {
+            ranked.addAll(part);
+        }
+        if (ranked.size() <= offset) {
+            return Collections.emptyList();
+        }
+        ranked.sort(rankOrder);
+        List<V> retVal = new ArrayList<>(Math.min(limit, ranked.size() - offset));
+        for (Ranked<V> r : ranked.subList(offset, Math.min(m, ranked.size()))) {
+            r.entry.setAccessTime(now);
+            retVal.add(r.val);
+        }
+        return Collections.unmodifiableList(retVal);
+    }
+
+    /**
+     * 将条目列表中可见、未过期并且满足条件的条目加入part，直到part中有m个条目
+     *
+     * @return 如果part已满，返回true
+     */
+    private boolean take(List<Ranked<V>> part, Object key, EntryList<V> entries, Conjunction<V> conjunction,
+                         long version, long now, int m) {
+        if (entries == null) {
+            return part.size() >= m;
+        }
+        for (ReferenceEntry<V> entry : entries) {
+            if (part.size() >= m) {
+                return true;
+            }
+            V val;
+            if (isAlive(entry, version, now) && (val = entry.getVal()) != null
+                    && (conjunction == null || conjunction.matches(val))) {
+                part.add(new Ranked<>(key, entry, val));
+            }
+        }
+        return part.size() >= m;
+    }
+
+    /**
+     * 字段值的比较器，使用自然顺序，null总是排在最后
+     *
+     * @param ascending 是否升序
+     * @return 比较器
+     */
+    @SuppressWarnings("unchecked")
+    private static Comparator<Object> keyOrder(boolean ascending) {
+        Comparator<Object> natural = (a, b) -> ((Comparable<Object>) a).compareTo(b);
+        return Comparator.nullsLast(ascending ? natural : natural.reversed());
+    }
+
+    /**
+     * 创建字段映射的句柄，字段只在此时校验一次，之后通过句柄查询不再按照字段名称查找映射，
+     * 适用于频繁查询同一字段的场景。句柄在刷新之后仍然有效
+     *
+     * @param field 字段名称
+     * @return 句柄
+     * @throws IllegalArgumentException 如果类型V中不存在传入的字段
+     * @throws NullPointerException     如果传入的字段没有相应的getter方法
+     */
+    public <K> FieldIndex<V, K> index(String field) {
+        if (!derivedIndexes.containsKey(field)) {
+            getter(field);
+        }
+        return new FieldIndex<>(this, field);
+    }
+
+    /**
+     * 获取已经校验过的字段在给定代中的映射，如果尚未构建则先构建，由{@link FieldIndex}使用
+     */
+    FieldMapping<V> resolveMapping(Generation<V> gen, String field) {
+        FieldMapping<V> map = gen.getMapping(field);
+        return map != null ? map : mappingValues(gen, field);
+    }
+
+    /**
+     * 在给定代的字段映射中查找字段值对应的记录，由{@link FieldIndex}使用
+     */
+    List<V> lookup(Generation<V> gen, FieldMapping<V> map, Object key) {
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        List<V> retVal = null;
+        for (int i = 0; i < gen.segments(); ++i) {
+            EntryList<V> entries = map.get(i, key);
+            if (entries != null) {
+                if (retVal == null) {
+                    retVal = new ArrayList<>(entries.size());
+                }
+                collect(retVal, entries, version, now);
+            }
+        }
+        if (retVal == null || retVal.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(retVal);
+    }
+
+    /**
+     * 统计给定代的字段映射中字段值对应的记录数，达到limit时停止，由{@link FieldIndex}使用
+     */
+    int lookupCount(Generation<V> gen, FieldMapping<V> map, Object key, int limit) {
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        int n = 0;
+        for (int i = 0; i < gen.segments(); ++i) {
+            EntryList<V> entries = map.get(i, key);
+            if (entries == null) {
+                continue;
+            }
+            for (ReferenceEntry<V> entry : entries) {
+                if (isAlive(entry, version, now) && ++n >= limit) {
+                    return n;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 批量查询给定字段的多个字段值，返回每个字段值对应的记录。
+     * 字段校验、映射查找以及时间读取在整批查询中只进行一次，涉及的条目数达到阈值时按字段值并行收集。
+     *
+     * @param field 字段名称
+     * @param keys  字段值集合
+     * @return 字段值到对应记录的映射，按照keys的迭代顺序排列，不包括没有对应记录的字段值
+     */
+    public <K> Map<K, List<V>> batchGetMappingValues(String field, Collection<? extends K> keys) {
+        checkNotNull(keys, "keys");
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        final FieldMapping<V> map = mapping(gen, field);
+        final int segments = gen.segments();
+        @SuppressWarnings("unchecked")
+        final K[] array = (K[]) keys.toArray();
+        final int n = array.length;
+
+        // 每个字段值占用连续的segments个位置
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        final EntryList<V>[] postings = new EntryList[n * segments];
+        int estimate = 0;
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < segments; ++j) {
+                EntryList<V> entries = map.get(j, array[i]);
+                postings[i * segments + j] = entries;
+                estimate += entries == null ? 0 : entries.size();
+            }
+        }
+        if (estimate == 0) {
+            return Collections.emptyMap();
+        }
+
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        final List<V>[] results = new List[n];
+        IntConsumer task = i -> {
+            List<V> ret = null;
+            for (int j = i * segments, end = j + segments; j < end; ++j) {
+                EntryList<V> entries = postings[j];
+                if (entries != null) {
+                    if (ret == null) {
+                        ret = new ArrayList<>(entries.size());
+                    }
+                    collect(ret, entries, version, now);
+                }
+            }
+            if (ret != null && !ret.isEmpty()) {
+                results[i] = Collections.unmodifiableList(ret);
+            }
+        };
+        if (n > 1 && estimate >= PARALLEL_THRESHOLD) {
+            inPool(() -> IntStream.range(0, n).parallel().forEach(task));
+        } else {
+            for (int i = 0; i < n; ++i) {
+                task.accept(i);
+            }
+        }
+
+        Map<K, List<V>> retVal = new LinkedHashMap<>(n * 4 / 3 + 1);
+        for (int i = 0; i < n; ++i) {
+            if (results[i] != null) {
+                retVal.put(array[i], results[i]);
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * 对给定字段以及字段值对应的每条记录调用action，不会创建结果列表。
+     * action在调用线程中依次执行，执行期间缓存的修改对此次遍历不可见
+     *
+     * @param field  字段名称
+     * @param action 对每条记录的操作
+     * @param values 字段值列表，为空时遍历全部值
+     */
+    public void forEachMatch(String field, Consumer<? super V> action, Object... values) {
+        checkNotNull(action);
+        spliterator(field, values).forEachRemaining(action);
+    }
+
+    /**
+     * 返回给定字段以及字段值对应记录的迭代器，在迭代时直接遍历条目列表并过滤不可见以及过期的条目，
+     * 不会复制结果。迭代器基于创建时的数据，不支持remove
+     *
+     * @param field  字段名称
+     * @param values 字段值列表，为空时遍历全部值
+     * @return 迭代器
+     */
+    public Iterator<V> iterator(String field, Object... values) {
+        return Spliterators.iterator(spliterator(field, values));
+    }
+
+    /**
+     * 返回给定字段以及字段值对应记录的惰性Stream，语义与{@link #iterator(String, Object...)}相同。
+     * 通过{@link Stream#parallel()}可以并行遍历，条目列表按照下标对半分割，
+     * 并行任务在调用线程所属的ForkJoinPool中执行
+     *
+     * @param field  字段名称
+     * @param values 字段值列表，为空时遍历全部值
+     * @return Stream
+     */
+    public Stream<V> stream(String field, Object... values) {
+        return StreamSupport.stream(spliterator(field, values), false);
+    }
+
+    private Spliterator<V> spliterator(String field, Object... values) {
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        EntryList<V>[] lists;
+        if (values.length == 0) {
+            lists = gen.values;
+        } else {
+            FieldMapping<V> map = mapping(gen, field);
+            List<EntryList<V>> found = new ArrayList<>(values.length * gen.segments());
+            for (Object value : values) {
+                for (int i = 0; i < gen.segments(); ++i) {
+                    EntryList<V> entries = map.get(i, value);
+                    if (entries != null) {
+                        found.add(entries);
+                    }
+                }
+            }
+            @SuppressWarnings({"rawtypes", "unchecked"})
+            EntryList<V>[] array = found.toArray(new EntryList[0]);
+            lists = array;
+        }
+        return new EntrySpliterator<>(lists, entry -> {
+            if (!isAlive(entry, version, now)) {
+                return null;
+            }
+            entry.setAccessTime(now);
+            return entry.getVal();
+        });
+    }
+
+    /**
+     * 返回满足条件的记录，遍历全部缓存值，用于没有字段映射的过滤条件。
+     * 注意：如果没有满足条件的记录，那么返回Collections.emptyList()
+     *
+     * @param predicate 条件
+     * @return 满足条件的记录
+     */
+    public List<V> scan(Predicate<? super V> predicate) {
+        return scan(predicate, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 返回满足条件的记录，最多返回limit条，找到足够的记录之后立即停止遍历。
+     * 缓存值较多时在{@link #pool}中并行遍历，此时返回哪些记录以及记录的顺序不确定
+     *
+     * @param predicate 条件，可能被多个线程同时调用
+     * @param limit     最多返回的记录数
+     * @return 满足条件的记录
+     */
+    public List<V> scan(Predicate<? super V> predicate, int limit) {
+        checkNotNull(predicate);
+        checkArgument(limit > 0, "limit must be positive");
+        if(++queries >= clearExpireThreshold) {
+            clearExpiredEntries();
+        }
+        final Generation<V> gen = generation.get();
+        final long version = gen.version;
+        final long now = System.nanoTime();
+        if (gen.size < PARALLEL_THRESHOLD) {
+            List<V> ret = new ArrayList<>();
+            for (EntryList<V> entries : gen.values) {
+                for (int i = 0, n = entries.size(); i < n; ++i) {
+                    ReferenceEntry<V> entry = entries.get(i);
+                    V val;
+                    if (isAlive(entry, version, now) && (val = entry.getVal()) != null && predicate.test(val)) {
+                        entry.setAccessTime(now);
+                        ret.add(val);
+                        if (ret.size() == limit) {
+                            return Collections.unmodifiableList(ret);
+                        }
+                    }
+                }
+            }
+            return ret.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(ret);
+        }
+
+        Stream<V> stream = StreamSupport.stream(new EntrySpliterator<>(gen.values, entry -> {
+            V val;
+            if (!isAlive(entry, version, now) || (val = entry.getVal()) == null || !predicate.test(val)) {
+                return null;
+            }
+            entry.setAccessTime(now);
+            return val;
+        }), true);
+        if (limit != Integer.MAX_VALUE) {
+            // 无序的limit在得到足够的记录之后取消其余的分割
+            stream = stream.unordered().limit(limit);
+        }
+        AtomicReference<List<V>> ret = new AtomicReference<>();
+        Stream<V> s = stream;
+        inPool(() -> ret.set(s.collect(Collectors.toList())));
+        return ret.get().isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(ret.get());
+    }
+
+    /**
+     * 返回给定字段的值满足条件的记录，字段可以没有字段映射。
+     * 非严格模式下没有getter方法的字段通过反射直接读取
+     *
+     * @param field     字段名称
+     * @param predicate 字段值的条件，字段值可能为null
+     * @return 满足条件的记录
+     */
+    public <K> List<V> scan(String field, Predicate<? super K> predicate) {
+        return scan(field, predicate, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 返回给定字段的值满足条件的记录，最多返回limit条
+     *
+     * @param field     字段名称
+     * @param predicate 字段值的条件，字段值可能为null
+     * @param limit     最多返回的记录数
+     * @return 满足条件的记录
+     * @see #scan(Predicate, int)
+     */
+    @SuppressWarnings("unchecked")
+    public <K> List<V> scan(String field, Predicate<? super K> predicate, int limit) {
+        checkNotNull(predicate);
+        Function<V, Object> accessor = accessor(field);
+        return scan(val -> predicate.test((K) accessor.apply(val)), limit);
+    }
+
+    private Function<V, Object> accessor(String field) {
+        checkArgument(getterMethods.containsKey(field), "Field %s is not exist", field);
+        MethodWrapper m = getterMethods.get(field);
+        if (m != null) {
+            return val -> FieldMapping.invoke(m, val);
+        }
+        Field f = checkNotNull(rawFields.get(field), "Field %s is not accessible", field);
+        return val -> {
+            try {
+                return f.get(val);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    /**
+     * 将条目列表中可见并且未过期的值加入结果
+     *
+     * @param ret     结果
+     * @param entries 条目列表，可以为null
+     * @param version 查询版本
+     * @param now     当前时间
+     */
+    private void collect(List<V> ret, EntryList<V> entries, long version, long now) {
+        if (entries == null) {
+            return;
+        }
+        for (ReferenceEntry<V> entry : entries) {
+            if (isAlive(entry, version, now)) {
+                entry.setAccessTime(now);
+                ret.add(entry.getVal());
+            }
+        }
+    }
+
+    /**
+     * 按分段并行收集结果，然后按照分段顺序合并
+     *
+     * @param segments 分段数
+     * @param postings 条目列表，每个分段占用连续的perSegment个位置
+     * @param perSegment 每个分段的条目列表数
+     * @param version  查询版本
+     * @param now      当前时间
+     * @return 结果
+     */
+    private List<V> parallelCollect(int segments, IntFunction<EntryList<V>> postings, int perSegment,
+                                    long version, long now) {
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        List<V>[] parts = new List[segments];
+        forEachSegment(segments, i -> {
+            List<V> part = new ArrayList<>();
+            for (int j = i * perSegment, end = j + perSegment; j < end; ++j) {
+                collect(part, postings.apply(j), version, now);
+            }
+            parts[i] = part;
+        });
+
+        int size = 0;
+        for (List<V> part : parts) {
+            size += part.size();
+        }
+        List<V> ret = new ArrayList<>(size);
+        for (List<V> part : parts) {
+            ret.addAll(part);
+        }
+        return ret;
+    }
+
+    /**
+     * 订阅给定字段值对应的记录，之后每次写入或者刷新时，如果对应的记录发生变化，那么异步通知listener。
+     * 订阅时的记录作为初始状态，不会被通知
+     *
+     * @param field    字段名称或者派生索引名称
+     * @param value    字段值
+     * @param listener 监听器，同一个订阅的通知不会并发执行
+     * @return 订阅
+     * @throws IllegalArgumentException 如果类型V中不存在传入的字段
+     */
+    public Subscription<V> subscribe(String field, Object value, Consumer<? super ChangeEvent<V>> listener) {
+        checkIndexed(field);
+        final Function<V, Object> key = keyFunction(field);
+        return subscribe(field, value, val -> Objects.equals(key.apply(val), value), listener);
+    }
+
+    /**
+     * 订阅满足条件的记录，参见{@link #subscribe(String, Object, Consumer)}。
+     * 订阅时遍历全部记录作为初始状态，之后只对每次写入或者刷新中发生变化的记录判断条件
+     *
+     * @param predicate 条件
+     * @param listener  监听器，同一个订阅的通知不会并发执行
+     * @return 订阅
+     */
+    public Subscription<V> subscribe(Predicate<? super V> predicate, Consumer<? super ChangeEvent<V>> listener) {
+        checkNotNull(predicate);
+        return subscribe(null, null, predicate, listener);
+    }
+
+    /**
+     * 在写锁内取得初始状态并加入订阅，保证之后的每一次变化都会通知到此订阅。
+     * 字段的映射已经构建时从映射中取得初始状态，否则遍历全部记录
+     */
+    private Subscription<V> subscribe(String field, Object value, Predicate<? super V> predicate,
+                                      Consumer<? super ChangeEvent<V>> listener) {
+        checkNotNull(listener);
+        writeLock.lock();
+        try {
+            final Generation<V> gen = generation.get();
+            final long version = gen.version;
+            final long now = System.nanoTime();
+            final FieldMapping<V> map = field == null ? null : gen.getMapping(field);
+            Map<Object, V> initial = new HashMap<>();
+            for (int i = 0; i < gen.segments(); ++i) {
+                if (map != null) {
+                    snapshot(initial, map.get(i, value), version, now, null);
+                } else {
+                    snapshot(initial, gen.values[i], version, now, predicate);
+                }
+            }
+            Subscription<V> subscription = new Subscription<>(this, initial, predicate, listener, notificationExecutor);
+            subscriptions.add(subscription);
+            return subscription;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void unsubscribe(Subscription<V> subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * 将条目列表中可见、未过期并且满足条件的值按照标识加入结果，不更新访问时间
+     */
+    private void snapshot(Map<Object, V> ret, EntryList<V> entries, long version, long now,
+                          Predicate<? super V> predicate) {
+        if (entries == null) {
+            return;
+        }
+        for (ReferenceEntry<V> entry : entries) {
+            V val;
+            if (isAlive(entry, version, now) && (val = entry.getVal()) != null
+                    && (predicate == null || predicate.test(val))) {
+                ret.put(identityOf(val), val);
+            }
+        }
+    }
+
+    /**
+     * 比较当前代与即将发布的新一代，得到标识到新值的映射，被删除的记录对应null。
+     * 新旧值相等的记录不包含在结果中，只能在写锁内调用
+     *
+     * @param current 当前代
+     * @param next    新的一代
+     * @return 发生变化的记录
+     */
+    private Map<Object, V> changes(Generation<V> current, Generation<V> next) {
+        final long now = System.nanoTime();
+        Map<Object, V> before = new HashMap<>(Math.max(current.size * 4 / 3, initialCapacity));
+        for (EntryList<V> entries : current.values) {
+            for (ReferenceEntry<V> entry : entries) {
+                V val;
+                if (entry.isVisible(current.version) && (val = entry.getVal()) != null) {
+                    before.put(identityOf(val), val);
+                }
+            }
+        }
+        Map<Object, V> changes = new HashMap<>();
+        for (EntryList<V> entries : next.values) {
+            for (ReferenceEntry<V> entry : entries) {
+                V val;
+                if (isAlive(entry, next.version, now) && (val = entry.getVal()) != null) {
+                    Object key = identityOf(val);
+                    V old = before.remove(key);
+                    if (old == null || (old != val && !old.equals(val))) {
+                        changes.put(key, val);
+                    }
+                }
+            }
+        }
+        for (Object key : before.keySet()) {
+            changes.put(key, null);
+        }
+        return changes;
+    }
+
+    /**
+     * 将一次写入或者刷新中发生变化的记录交给所有订阅，只能在写锁内调用，保证订阅按照修改的顺序收到变化
+     *
+     * @param changes 标识到新值的映射，被删除的记录对应null；没有订阅时为null
+     */
+    private void publishChanges(Map<Object, V> changes) {
+        if (changes == null || changes.isEmpty()) {
+            return;
+        }
+        for (Subscription<V> subscription : subscriptions) {
+            subscription.changed(changes);
+        }
+    }
+
+    /**
+     * 重新加载缓存值。
+     * <p>
+     * 如果声明了标识字段并且{@link CacheLoader#loadChanges(long)}支持增量加载，那么只加载
+     * 自上一次水位以来的变化，并在当前代上原地应用到缓存值以及所有已经物化的字段映射。
+     * <p>
+     * 否则进行全量刷新。如果开启了{@link CacheBuilder#reloadByDiff()}，那么将加载的数据与当前数据比较，
+     * 只在当前代上修改发生变化的条目；否则新的缓存值以及当前代中所有已经物化的字段映射会在旁路构建完成，
+     * 然后原子替换当前代，刷新期间的查询继续使用旧的数据。
+     * <p>
+     * 刷新在调用线程中执行，如果已经有刷新正在进行，那么等待其完成而不会再次加载。
+     * 刷新失败时只记录日志。
+     */
+    public void refresh() {
+        refresh(Runnable::run).handle((v, t) -> null).join();
+    }
+
+    /**
+     * 在{@link CacheBuilder#refreshExecutor(Executor)}指定的执行器中异步刷新，参见{@link #refresh()}。
+     * 刷新期间查询继续使用旧的数据，并发的刷新请求被合并为一次加载。
+     *
+     * @return 刷新完成时完成的Future，刷新失败时异常完成
+     */
+    public CompletableFuture<Void> refreshAsync() {
+        return refresh(refreshExecutor);
+    }
+
+    private CompletableFuture<Void> refresh(Executor executor) {
+        for (; ; ) {
+            CompletableFuture<Void> current = refreshing.get();
+            if (current != null) {
+                return current;
+            }
+            CompletableFuture<Void> created = new CompletableFuture<>();
+            if (refreshing.compareAndSet(null, created)) {
+                try {
+                    executor.execute(() -> {
+                        Throwable failure = null;
+                        try {
+                            doRefresh();
+                        } catch (Throwable t) {
+                            failure = t;
+                            LOG.error("Cache refresh fail, caused by: {}", t.getMessage(), t);
+                        }
+                        // 先清除正在进行的刷新，之后的请求会开始新的加载
+                        refreshing.set(null);
+                        if (failure == null) {
+                            created.complete(null);
+                        } else {
+                            created.completeExceptionally(failure);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    refreshing.set(null);
+                    created.completeExceptionally(e);
+                    LOG.error("Cache refresh rejected", e);
+                }
+                return created;
+            }
+        }
+    }
+
+    private void doRefresh() throws Exception {
+        long start = System.currentTimeMillis();
+        if (identityMethod != null && refreshChanges()) {
+            LOG.info("Cache incremental refresh success, cost: {} ms", (System.currentTimeMillis() - start));
+            return;
+        }
+
+        Set<String> names = new LinkedHashSet<>(indexFields);
+        Generation<V> next;
+        long mark;
+        if (reloadByDiff) {
+            List<V> list = loadList();
+            mark = cacheLoader.watermark();
+            if (applyDiff(list)) {
+                watermark = mark;
+                LOG.info("Cache refresh success, cost: {} ms", (System.currentTimeMillis() - start));
+                return;
+            }
+            // 差异过大或者无法比较值，使用已经加载的数据构建新的一代
+            names.addAll(generation.get().mappedFields());
+            next = newGeneration(list);
+            buildMappings(next, names);
+            buildUnique(next);
+        } else {
+            names.addAll(generation.get().mappedFields());
+            next = loadGeneration(names, false);
+            mark = cacheLoader.watermark();
+        }
+        writeLock.lock();
+        try {
+            Map<Object, V> changes = subscriptions.isEmpty() ? null : changes(generation.get(), next);
+            generation.set(next);
+            if (resultCache != null) {
+                resultCache.clear();
+            }
+            publishChanges(changes);
+        } finally {
+            writeLock.unlock();
+        }
+        watermark = mark;
+        queries = 0;
+        LOG.info("Cache refresh success, cost: {} ms", (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * 加载并应用自上一次水位以来的变化
+     *
+     * @return 如果加载器不支持增量加载，返回false
+     * @throws Exception 如果加载失败
+     */
+    private boolean refreshChanges() throws Exception {
+        CacheChanges<V> changes = cacheLoader.loadChanges(watermark);
+        if (changes == null) {
+            return false;
+        }
+        if (!changes.isEmpty()) {
+            applyChanges(changes.getUpserts(), changes.getRemovals());
+        }
+        watermark = changes.getWatermark();
+        LOG.debug("Apply " + changes);
+        return true;
+    }
+
+    /**
+     * 在当前代上原地应用变化
+     *
+     * @param upserts  新增或者更新的值
+     * @param removals 删除的值
+     */
+    private void applyChanges(Collection<V> upserts, Collection<V> removals) {
+        List<Object> removalKeys = new ArrayList<>(removals.size());
+        for (V val : removals) {
+            removalKeys.add(identityOf(val));
+        }
+        writeLock.lock();
+        try {
+            apply(generation.get(), upserts, removalKeys);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 将全量加载的数据与当前代比较，只修改发生变化的条目。
+     * <p>
+     * 如果一个条目的新值与原值相等，那么保留此条目，只更新写入时间；如果新值不相等但唯一字段值以及所有已经构建的
+     * 字段映射的键都没有变化，那么保留此条目在字段映射中的位置，只替换值；否则替换此条目。
+     * 当前代中不存在于新数据的条目被删除。任何一个条目发生变化时都会发布新版本。
+     * <p>
+     * 如果值类型没有重写equals方法，或者需要新增以及删除的条目数超过{@link #DIFF_REBUILD_RATIO}，
+     * 那么不修改当前代，由调用者构建新的一代。
+     *
+     * @param list 全量加载的数据
+     * @return 如果需要构建新的一代，返回false
+     */
+    private boolean applyDiff(List<V> list) {
+        if (!comparableValues) {
+            return false;
+        }
+        writeLock.lock();
+        try {
+            Generation<V> gen = generation.get();
+            Map<Object, ReferenceEntry<V>> identities = identities(gen);
+            List<FieldMapping<V>> mappings = gen.builtMappings();
+            boolean replaceable = strength == Strength.STRONG;
+            Set<Object> seen = new HashSet<>(Math.max(list.size() * 4 / 3, initialCapacity));
+            List<V> upserts = new ArrayList<>();
+            List<ReferenceEntry<V>> replacedEntries = new ArrayList<>();
+            List<V> replacements = new ArrayList<>();
+            long now = System.nanoTime();
+            for (V val : list) {
+                Object key = identityOf(val);
+                seen.add(key);
+                ReferenceEntry<V> entry = identities.get(key);
+                V old;
+                if (entry == null || (old = entry.getVal()) == null) {
+                    upserts.add(val);
+                } else if (old == val || old.equals(val)) {
+                    entry.setWriteTime(now);
+                } else if (replaceable && sameKeys(old, val, mappings)) {
+                    replacedEntries.add(entry);
+                    replacements.add(val);
+                } else {
+                    upserts.add(val);
+                }
+            }
+            List<Object> removals = new ArrayList<>();
+            for (Object key : identities.keySet()) {
+                if (!seen.contains(key)) {
+                    removals.add(key);
+                }
+            }
+            if (upserts.size() + removals.size() > gen.size * DIFF_REBUILD_RATIO) {
+                LOG.info("Cache reload diff too large, upserts: {}, removals: {}, rebuild generation",
+                        upserts.size(), removals.size());
+                return false;
+            }
+
+            Map<Object, V> changes = subscriptions.isEmpty() ? null : new HashMap<>();
+            for (int i = 0; i < replacedEntries.size(); ++i) {
+                ReferenceEntry<V> entry = replacedEntries.get(i);
+                V val = replacements.get(i);
+                entry.replaceVal(val);
+                entry.setWriteTime(now);
+                if (changes != null) {
+                    changes.put(identityOf(val), val);
+                }
+            }
+            if (!replacedEntries.isEmpty()) {
+                // 正在构建的映射可能已经读取了替换前的值，使其重新构建
+                gen.replacements = gen.replacements + 1;
+            }
+            if (upserts.isEmpty() && removals.isEmpty()) {
+                if (!replacedEntries.isEmpty()) {
+                    gen.version = gen.version + 1;
+                    afterWrite(changes);
+                }
+            } else {
+                apply(gen, upserts, removals, changes);
+            }
+            LOG.info("Cache reload diff, retained: {}, replaced: {}, upserts: {}, removals: {}",
+                    list.size() - upserts.size() - replacedEntries.size(), replacedEntries.size(),
+                    upserts.size(), removals.size());
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 判断两个值的唯一字段值以及在给定字段映射中的键是否都相同
+     */
+    private boolean sameKeys(V old, V val, List<FieldMapping<V>> mappings) {
+        if (uniqueMethod != null && !Objects.equals(FieldMapping.invoke(uniqueMethod, old),
+                FieldMapping.invoke(uniqueMethod, val))) {
+            return false;
+        }
+        for (FieldMapping<V> map : mappings) {
+            if (!Objects.equals(map.keyOf(old), map.keyOf(val))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean overridesEquals(Class<?> clazz) {
+        try {
+            return clazz.getMethod("equals", Object.class).getDeclaringClass() != Object.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 在给定代上原地应用变化，只能在写锁内调用。
+     * 新条目的创建版本以及被替换、被删除条目的删除版本均为当前版本加一，
+     * 所有结构修改完成后再发布新版本，因此查询要么看到全部变化，要么一个也看不到。
+     * 如果修改过程中发生异常，那么撤销已经做出的修改。
+     *
+     * @param gen         当前代
+     * @param upserts     新增或者更新的值
+     * @param removalKeys 删除的值的标识
+     */
+    private void apply(Generation<V> gen, Collection<V> upserts, Collection<Object> removalKeys) {
+        apply(gen, upserts, removalKeys, subscriptions.isEmpty() ? null : new HashMap<>());
+    }
+
+    /**
+     * 在给定代上原地应用变化，并与已经发生的变化合并为一次通知
+     *
+     * @param gen         当前代
+     * @param upserts     新增或者更新的值
+     * @param removalKeys 删除的值的标识
+     * @param changes     已经发生的变化，没有订阅时为null
+     */
+    private void apply(Generation<V> gen, Collection<V> upserts, Collection<Object> removalKeys,
+                       Map<Object, V> changes) {
+        if (upserts.isEmpty() && removalKeys.isEmpty()) {
+            return;
+        }
+        Map<Object, ReferenceEntry<V>> identities = identities(gen);
+        List<FieldMapping<V>> mappings = gen.builtMappings();
+        UniqueIndex<V> unique = gen.unique;
+        if (unique != null) {
+            checkUnique(gen, upserts, removalKeys);
+        }
+        long next = gen.version + 1;
+        List<ReferenceEntry<V>> removed = new ArrayList<>();
+        List<ReferenceEntry<V>> added = new ArrayList<>(upserts.size());
+        try {
+            for (Object key : removalKeys) {
+                ReferenceEntry<V> old = identities.remove(key);
+                if (old != null) {
+                    old.setRemovedVersion(next);
+                    removed.add(old);
+                    if (unique != null) {
+                        unique.stageRemoval(old);
+                    }
+                    if (changes != null) {
+                        changes.put(key, null);
+                    }
+                }
+            }
+            for (V val : upserts) {
+                ReferenceEntry<V> entry = strength.referenceEntry(val, next);
+                Object key = identityOf(val);
+                ReferenceEntry<V> old = identities.put(key, entry);
+                if (changes != null) {
+                    changes.put(key, val);
+                }
+                if (old != null) {
+                    old.setRemovedVersion(next);
+                    entry.setAccessTime(old.getAccessTime());
+                    removed.add(old);
+                    if (unique != null) {
+                        unique.stageRemoval(old);
+                    }
+                }
+                added.add(entry);
+                int segment = gen.nextSegment();
+                gen.values[segment].add(entry);
+                for (FieldMapping<V> map : mappings) {
+                    map.add(segment, entry);
+                }
+                if (unique != null) {
+                    unique.stage(entry);
+                }
+            }
+        } catch (RuntimeException e) {
+            if (unique != null) {
+                unique.rollback();
+            }
+            for (ReferenceEntry<V> entry : removed) {
+                entry.setRemovedVersion(Long.MAX_VALUE);
+            }
+            // 已经加入的新条目永远不可见，等待清理
+            for (ReferenceEntry<V> entry : added) {
+                entry.setRemovedVersion(next);
+            }
+            gen.removed += added.size();
+            gen.identities = null;
+            throw e;
+        }
+
+        gen.removed += removed.size();
+        int entries = gen.entries();
+        gen.size = entries - gen.removed;
+        gen.version = next;
+        if (unique != null) {
+            unique.settle(next);
+        }
+        afterWrite(changes);
+
+        // 被删除的条目过多时，构建新的一代清理它们
+        if (gen.removed > entries / 2) {
+            compact(gen);
+        }
+    }
+
+    /**
+     * 发布新版本之后使结果缓存失效并通知订阅
+     *
+     * @param changes 发生变化的记录，参见{@link #publishChanges(Map)}
+     */
+    private void afterWrite(Map<Object, V> changes) {
+        if (resultCache != null) {
+            resultCache.clear();
+        }
+        publishChanges(changes);
+    }
+
+    /**
+     * 获取标识字段值到条目的映射，如果尚未构建则先构建，只能在写锁内调用
+     *
+     * @param gen 当前代
+     * @return 标识映射
+     */
+    private Map<Object, ReferenceEntry<V>> identities(Generation<V> gen) {
+        if (gen.identities == null) {
+            long version = gen.version;
+            Map<Object, ReferenceEntry<V>> identities = new HashMap<>(Math.max(gen.size * 4 / 3, initialCapacity));
+            for (EntryList<V> entries : gen.values) {
+                for (ReferenceEntry<V> entry : entries) {
+                    V val = entry.getVal();
+                    if (val != null && entry.isVisible(version)) {
+                        identities.put(identityOf(val), entry);
+                    }
+                }
+            }
+            gen.identities = identities;
+        }
+        return gen.identities;
+    }
+
+    /**
+     * 检查写入之后唯一字段是否仍然唯一，只能在写锁内调用
+     *
+     * @param gen         当前代
+     * @param upserts     新增或者更新的值
+     * @param removalKeys 删除的值的标识
+     * @throws IllegalArgumentException 如果写入的值的唯一字段值与其他条目重复
+     */
+    private void checkUnique(Generation<V> gen, Collection<V> upserts, Collection<Object> removalKeys) {
+        UniqueIndex<V> unique = gen.unique;
+        // 标识到写入之后的唯一字段值
+        Map<Object, Object> keys = new HashMap<>(upserts.size() * 4 / 3 + 1);
+        Map<Object, Object> owners = new HashMap<>(upserts.size() * 4 / 3 + 1);
+        for (V val : upserts) {
+            Object id = identityOf(val);
+            Object key = unique.keyOf(val);
+            keys.put(id, key);
+            if (key == null) {
+                continue;
+            }
+            Object owner = owners.put(key, id);
+            checkArgument(owner == null || owner.equals(id), "Duplicate value %s of unique field %s", key, uniqueField);
+        }
+        for (Map.Entry<Object, Object> e : owners.entrySet()) {
+            ReferenceEntry<V> entry = unique.get(e.getKey(), gen);
+            V val;
+            if (entry == null || (val = entry.getVal()) == null) {
+                continue;
+            }
+            Object id = identityOf(val);
+            // 已有的条目属于其他标识，并且不会在此次写入中被删除或者改为其他字段值
+            boolean released = id.equals(e.getValue()) || removalKeys.contains(id)
+                    || (keys.containsKey(id) && !Objects.equals(keys.get(id), e.getKey()));
+            checkArgument(released, "Duplicate value %s of unique field %s", e.getKey(), uniqueField);
+        }
+    }
+
+    /**
+     * 返回唯一字段值对应的值，需要通过{@link CacheBuilder#unique(String)}声明唯一字段。
+     * 直接查询唯一索引，不会创建任何对象
+     *
+     * @param key 唯一字段值
+     * @return 对应的值，如果不存在或者已经过期，返回null
+     * @throws IllegalStateException 如果没有声明唯一字段
+     */
+    public V get(Object key) {
+        final Generation<V> gen = generation.get();
+        final UniqueIndex<V> unique = gen.unique;
+        checkState(unique != null, "unique field is not declared");
+        ReferenceEntry<V> entry = unique.get(key, gen);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (!isAlive(entry, now)) {
+            return null;
+        }
+        entry.setAccessTime(now);
+        return entry.getVal();
+    }
+
+    private Object identityOf(V val) {
+        if (identityMethod == null) {
+            return val;
+        }
+        try {
+            return identityMethod.invoke(val);
+        } catch (Throwable t) {
+            LOG.error("Invoke method " + identityMethod.getMethodName() + " fail", t);
+            throw new RuntimeException(t);
         }
     }
 
     /**
-     * 解析Class，获取其所有字段以及相应的getter方法
+     * 写入一个值。如果已经存在标识相同的条目，那么替换此条目。
+     * <p>
+     * 值以及所有已经物化的字段映射在写锁内原地修改，修改完成后发布新版本，
+     * 查询不会看到只出现在部分字段映射中的值。第一次写入时需要构建标识映射。
+     * 注意：全量刷新以加载的数据为准，刷新期间的写入可能被覆盖。
      *
-     * @param clazz Class
+     * @param val 值
      */
-    private void resolveClass(Class<?> clazz) {
-        LOG.debug("Reflect class: " + clazz);
-        checkState(!initialized, "repeat init");
-
-        Field[] fields;
-        if (System.getSecurityManager() != null) {
-            fields = AccessController.doPrivileged((PrivilegedAction<Field[]>) clazz::getDeclaredFields);
-        } else {
-            fields = clazz.getDeclaredFields();
+    public void put(V val) {
+        checkNotNull(val);
+        writeLock.lock();
+        try {
+            apply(generation.get(), Collections.singletonList(val), Collections.emptyList());
+        } finally {
+            writeLock.unlock();
         }
-        getterMethods = new HashMap<>(fields.length);
+    }
 
-        for (Field field : fields) {
-            String fieldName = field.getName();
-            this.fields.add(fieldName);
+    /**
+     * 使用newVal替换oldVal，两者的标识可以不同。
+     * 删除oldVal与写入newVal同时对查询可见。
+     *
+     * @param oldVal 原值
+     * @param newVal 新值
+     * @return 如果oldVal不存在，不进行任何修改并返回false
+     */
+    public boolean replace(V oldVal, V newVal) {
+        checkNotNull(oldVal);
+        checkNotNull(newVal);
+        Object key = identityOf(oldVal);
+        writeLock.lock();
+        try {
+            Generation<V> gen = generation.get();
+            if (!identities(gen).containsKey(key)) {
+                return false;
+            }
+            apply(gen, Collections.singletonList(newVal), Collections.singletonList(key));
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
-            MethodWrapper m;
-            try {
-                if (field.getType() == boolean.class || field.getType() == Boolean.class) {
-                    m = MethodWrapper.findGetterMethod(clazz, getterMethodName(fieldName, true));
-                } else {
-                    m = MethodWrapper.findGetterMethod(clazz, getterMethodName(fieldName, false));
-                }
-                getterMethods.put(fieldName, m);
-            } catch (NoSuchMethodException e) {
-                if (strict) {
-                    LOG.error("Class " + clazz.getName() + " don't have getter method for field " + field.getName(), e);
-                    throw new RuntimeException(e);
-                } else {
-                    LOG.warn("Class " + clazz.getName() + " don't have getter method for field " + field.getName());
-                    // 占位
-                    getterMethods.put(fieldName, null);
-                }
+    /**
+     * 删除标识与给定值相同的条目
+     *
+     * @param val 值
+     * @return 如果条目不存在，返回false
+     */
+    public boolean remove(V val) {
+        checkNotNull(val);
+        Object key = identityOf(val);
+        writeLock.lock();
+        try {
+            Generation<V> gen = generation.get();
+            if (!identities(gen).containsKey(key)) {
+                return false;
             }
+            apply(gen, Collections.emptyList(), Collections.singletonList(key));
+            return true;
+        } finally {
+            writeLock.unlock();
         }
+    }
 
-        initialized = true;
+    public int size() {
+        return generation.get().size;
+    }
+
+    Generation<V> generation() {
+        return generation.get();
     }
 
     /**
-     * 构建字段与缓存值之间的映射关系
+     * 全量加载缓存值并构建新的一代，以及给定字段的映射
      *
-     * @param name 字段名称
-     * @throws IllegalArgumentException 如果类型V中不存在传入的字段
-     * @throws IllegalArgumentException 如果传入的字段没有相应的getter方法
-     * @throws RuntimeException         如果反射调用失败
+     * @param names   需要构建映射的字段
+     * @param initial 是否为第一次加载，第一次加载调用{@link CacheLoader#load()}，否则调用{@link CacheLoader#reload()}
+     * @return 尚未发布的新一代
+     * @throws Exception 如果加载失败
      */
-    public void mappingValues(String name) {
-        checkArgument(fields.contains(name), "Field %s is not exist", name);
-        final MethodWrapper method;
-        final int index = fields.indexOf(name);
-        checkNotNull(method = getterMethods.get(name), "Field %s don't have getter method", name);
-
-        // 映射值时加锁。
-        // 以字段为下标，当某个字段正在被映射时，将锁对应的位设置为1
-        // 如果已经有其他线程正在映射此字段，那么让出CPU，等待其他线程执行完后返回
-        for (; ; ) {
-            long lockValue = lock.get();
-            if ((lockValue & (1L << index)) != 0) {
-                Thread.yield();
-            } else {
-                if (lock.compareAndSet(lockValue, lockValue | (1L << index))) {
-                    Map<Object, List<ReferenceEntry<V>>> map = mapping.get(name);
-                    if (map == null) {
-                        map = new HashMap<>();
-                        mapping.put(name, map);
-                    } else {
-                        return;
-                    }
+    private Generation<V> loadGeneration(Collection<String> names, boolean initial) throws Exception {
+        if (cacheLoader.partitions() > 0) {
+            Generation<V> gen = loadPartitionGeneration(names);
+            buildUnique(gen);
+            return gen;
+        }
+        if (cacheLoader.isStreaming()) {
+            Generation<V> gen = loadStreamGeneration(names, initial);
+            buildUnique(gen);
+            return gen;
+        }
+        List<V> list = initial ? cacheLoader.load() : cacheLoader.reload();
+        Generation<V> gen = newGeneration(list);
+        buildMappings(gen, names);
+        buildUnique(gen);
+        return gen;
+    }
 
-                    for (ReferenceEntry<V> entry : values) {
-                        try {
-                            Object key = method.invoke(entry.getVal());
-                            map.computeIfAbsent(key, k -> new ArrayList<>());
-                            map.get(key).add(entry);
-                        } catch (Throwable t) {
-                            LOG.error("Invoke method " + method.getMethodName() + " fail", t);
-                            throw new RuntimeException(t);
-                        }
-                    }
+    /**
+     * 在代发布之前构建唯一索引，重复的字段值只保留其中一个并记录警告
+     *
+     * @param gen 尚未发布的代
+     */
+    private void buildUnique(Generation<V> gen) {
+        if (uniqueMethod == null) {
+            return;
+        }
+        UniqueIndex<V> unique = new UniqueIndex<>(uniqueMethod, Math.max(gen.size * 4 / 3, initialCapacity));
+        LongAdder duplicates = new LongAdder();
+        forEachSegment(gen.segments(), i -> {
+            for (ReferenceEntry<V> entry : gen.values[i]) {
+                if (entry.isVisible(gen.version) && unique.putIfAbsent(entry) != null) {
+                    duplicates.increment();
+                }
+            }
+        });
+        if (duplicates.sum() > 0) {
+            LOG.warn("Unique field {} has {} duplicate values, only one entry is kept for each value",
+                    uniqueField, duplicates.sum());
+        }
+        gen.unique = unique;
+    }
 
-                    // 解锁
-                    for (; ; ) {
-                        lockValue = lock.get();
-                        if (lock.compareAndSet(lockValue, lockValue & ~(1 << index))) {
-                            return;
-                        }
-                    }
+    /**
+     * 分区加载缓存值并构建新的一代。
+     * 分区p加载完成后立即在加载线程中包装并加入分段 p % 分段数，同时构建给定字段的映射，
+     * 同一分段的写入通过分段的条目列表加锁串行。
+     *
+     * @param names 需要构建映射的字段
+     * @return 尚未发布的新一代
+     * @throws Exception 如果任一分区加载失败
+     */
+    private Generation<V> loadPartitionGeneration(Collection<String> names) throws Exception {
+        EntryList<V>[] values = newSegments();
+        Map<String, FieldMapping<V>> mappings = newMappings(names, values.length);
+        loadPartitions((list, partition) -> {
+            int segment = partition % values.length;
+            synchronized (values[segment]) {
+                for (V val : list) {
+                    addEntry(values, segment, mappings, val);
                 }
             }
+        });
+        return newGeneration(values, mappings);
+    }
+
+    /**
+     * 流式加载缓存值并构建新的一代。
+     * 每个缓存值在到达时立即包装并依次轮转加入分段，同时构建给定字段的映射，不会持有中间列表。
+     *
+     * @param names   需要构建映射的字段
+     * @param initial 是否为第一次加载
+     * @return 尚未发布的新一代
+     * @throws Exception 如果加载失败
+     */
+    private Generation<V> loadStreamGeneration(Collection<String> names, boolean initial) throws Exception {
+        EntryList<V>[] values = newSegments();
+        Map<String, FieldMapping<V>> mappings = newMappings(names, values.length);
+        int[] next = new int[1];
+        Consumer<V> consumer = val -> {
+            int segment = next[0];
+            next[0] = (segment + 1) % values.length;
+            addEntry(values, segment, mappings, val);
+        };
+        if (initial) {
+            cacheLoader.load(consumer);
+        } else {
+            cacheLoader.reload(consumer);
         }
+        return newGeneration(values, mappings);
     }
 
     /**
-     * 返回给定字段以及字段值对应的记录。
-     * 注意：如果没有给定字段值对应的记录，那么返回Collections.emptyList()
+     * 加载所有缓存值到一个列表中，用于按照差异重新加载
      *
-     * @param field  字段名称
-     * @param values 字段值列表
-     * @return 对应的记录
+     * @return 缓存值
+     * @throws Exception 如果加载失败
      */
-    public List<V> getMappingValues(String field, Object... values) {
-        if(++queries >= clearExpireThreshold) {
-            clearExpiredEntries();
+    private List<V> loadList() throws Exception {
+        if (cacheLoader.partitions() > 0) {
+            return loadPartitionList();
         }
+        if (cacheLoader.isStreaming()) {
+            List<V> list = new ArrayList<>(initialCapacity);
+            cacheLoader.reload(list::add);
+            return list;
+        }
+        return cacheLoader.reload();
+    }
 
-        long now = System.nanoTime();
-        // 如果不提供key，那么返回全部值
-        if (values.length == 0) {
-            List<V> ret = new ArrayList<>(this.values.size() / 2);
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private EntryList<V>[] newSegments() {
+        EntryList<V>[] values = new EntryList[concurrencyLevel];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = new EntryList<>(Math.max(initialCapacity / values.length, 1));
+        }
+        return values;
+    }
 
-            for (ReferenceEntry<V> entry : this.values) {
-                if (isAlive(entry, now)) {
-                    entry.setAccessTime(now);
-                    ret.add(entry.getVal());
-                }
-            }
-            return Collections.unmodifiableList(ret);
+    private Map<String, FieldMapping<V>> newMappings(Collection<String> names, int segments) {
+        Map<String, FieldMapping<V>> mappings = new LinkedHashMap<>(names.size());
+        for (String name : names) {
+            mappings.put(name, newFieldMapping(name, segments));
         }
+        return mappings;
+    }
 
-        checkArgument(fields.contains(field), "Field %s is not exist", field);
-        final Map<Object, List<ReferenceEntry<V>>> map;
-        if ((map = mapping.get(field)) != null) {
-            List<V> retVal = new ArrayList<V>();
-            for (Object val : values) {
-                List<ReferenceEntry<V>> entries = map.get(val);
-                for (ReferenceEntry<V> entry : entries) {
-                    if (isAlive(entry, now)) {
-                        entry.setAccessTime(now);
-                        retVal.add(entry.getVal());
-                    }
-                }
-            }
-            if (retVal.size() == 0) {
-                return Collections.emptyList();
-            }
+    /**
+     * 包装缓存值并加入给定分段以及所有字段映射，同一分段只能由一个线程同时加入
+     */
+    private void addEntry(EntryList<V>[] values, int segment, Map<String, FieldMapping<V>> mappings, V val) {
+        ReferenceEntry<V> entry = strength.referenceEntry(val, 0L);
+        values[segment].add(entry);
+        for (FieldMapping<V> map : mappings.values()) {
+            map.add(segment, entry);
+        }
+    }
 
-            return Collections.unmodifiableList(retVal);
-        } else {
-            mappingValues(field);
-            return getMappingValues(field, values);
+    private Generation<V> newGeneration(EntryList<V>[] values, Map<String, FieldMapping<V>> mappings) {
+        Generation<V> gen = new Generation<>(values, fields.size(), 0L);
+        for (Map.Entry<String, FieldMapping<V>> e : mappings.entrySet()) {
+            gen.putMapping(e.getKey(), e.getValue());
         }
+        return gen;
     }
 
-    public void refresh() {
-        long start = System.currentTimeMillis();
-        try {
-            this.values.clear();
-            List<V> list = cacheLoader.reload();
-            for (V val : list) {
-                values.add(strength.referenceEntry(val));
-            }
-            queries = 0;
-        } catch (Exception e) {
-            LOG.error("Cache refresh fail, caused by: {}", e.getMessage(), e);
+    /**
+     * 分区加载缓存值，按照分区顺序合并为一个列表
+     *
+     * @return 缓存值
+     * @throws Exception 如果任一分区加载失败
+     */
+    private List<V> loadPartitionList() throws Exception {
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        List<V>[] parts = new List[cacheLoader.partitions()];
+        loadPartitions((list, partition) -> parts[partition] = list);
+        int size = 0;
+        for (List<V> part : parts) {
+            size += part.size();
+        }
+        List<V> list = new ArrayList<>(size);
+        for (List<V> part : parts) {
+            list.addAll(part);
         }
+        return list;
+    }
 
-        LOG.info("Cache refresh success, cost: {} ms", (System.currentTimeMillis() - start));
+    /**
+     * 并发加载所有分区，同时加载的分区数不超过{@link #loadParallelism}。调用线程负责加载一部分分区，
+     * 其余的加载任务提交到{@link #PARTITION_LOAD_EXECUTOR}，不会占用调用线程所在的刷新执行器。
+     * 每个分区加载完成后在加载线程中调用consumer，任一分区加载失败时不再加载剩余的分区。
+     *
+     * @param consumer 分区数据的处理，参数为分区数据以及分区下标
+     * @throws Exception 如果任一分区加载失败
+     */
+    private void loadPartitions(ObjIntConsumer<List<V>> consumer) throws Exception {
+        final int partitions = cacheLoader.partitions();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Runnable worker = () -> {
+            int partition;
+            while (failure.get() == null && (partition = next.getAndIncrement()) < partitions) {
+                try {
+                    consumer.accept(cacheLoader.load(partition), partition);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+        int workers = Math.min(loadParallelism, partitions);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(workers - 1);
+        for (int i = 1; i < workers; ++i) {
+            futures.add(CompletableFuture.runAsync(worker, PARTITION_LOAD_EXECUTOR));
+        }
+        worker.run();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+        Throwable t = failure.get();
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        } else if (t != null) {
+            throw (Error) t;
+        }
     }
 
-    public int size() {
-        return values.size();
+    /**
+     * 创建新的一代，list被划分为连续的多个分段并行包装
+     *
+     * @param list 缓存值
+     * @return 新的一代
+     */
+    private Generation<V> newGeneration(List<V> list) {
+        final int segments = concurrencyLevel;
+        final int size = list.size();
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        EntryList<V>[] values = new EntryList[segments];
+        forEachSegment(segments, i -> {
+            int from = (int) ((long) size * i / segments);
+            int to = (int) ((long) size * (i + 1) / segments);
+            EntryList<V> entries = new EntryList<>(Math.max(initialCapacity / segments, to - from));
+            for (V val : list.subList(from, to)) {
+                entries.add(strength.referenceEntry(val, 0L));
+            }
+            values[i] = entries;
+        });
+        return new Generation<>(values, fields.size(), 0L);
     }
 
     private String getterMethodName(String fieldName, boolean isBool) {
@@ -321,23 +3114,180 @@ public class MultiDimensionCache<V> {
         return "get" + String.valueOf(strChar);
     }
 
+    /**
+     * 清除过期条目。
+     * 如果其他线程正在修改缓存，那么跳过此次清理。
+     */
     private void clearExpiredEntries() {
-        Iterator<ReferenceEntry<V>> itr = values.iterator();
-        int removes = 0;
-        long now = System.nanoTime();
+        if (!writeLock.tryLock()) {
+            return;
+        }
+        try {
+            queries = 0;
+            compact(generation.get());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 构建一个只包含当前版本可见并且未过期条目的新一代进行替换，只能在写锁内调用。
+     * 字段映射直接从当前代复制，不会重新调用getter方法。
+     * 先在原地统计需要清除的条目数，没有需要清除的条目时不会复制任何数据。
+     *
+     * @param current 当前代
+     */
+    private void compact(Generation<V> current) {
+        if (expireAfterWriteNanos == 0 && expireAfterAccessNanos == 0 && current.removed == 0) {
+            return;
+        }
+        final long version = current.version;
+        final long now = System.nanoTime();
         long start = System.currentTimeMillis();
-        while (itr.hasNext()) {
-            ReferenceEntry<V> entry = itr.next();
-            if(!isAlive(entry, now)) {
-                itr.remove();
-                ++removes;
+        Predicate<ReferenceEntry<V>> retain = entry -> isAlive(entry, version, now);
+
+        final int segments = current.segments();
+        AtomicInteger dead = new AtomicInteger();
+        forEachSegment(segments, i -> {
+            int n = 0;
+            for (ReferenceEntry<V> entry : current.values[i]) {
+                if (!retain.test(entry)) {
+                    ++n;
+                }
             }
+            dead.addAndGet(n);
+        });
+        if (dead.get() == 0) {
+            return;
+        }
+
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        EntryList<V>[] alive = new EntryList[segments];
+        // 过期但仍然可见的记录作为删除的记录通知订阅
+        final boolean notify = !subscriptions.isEmpty();
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        List<V>[] expired = new List[segments];
+        forEachSegment(segments, i -> {
+            EntryList<V> entries = new EntryList<>(current.values[i].size());
+            List<V> dropped = new ArrayList<>();
+            for (ReferenceEntry<V> entry : current.values[i]) {
+                V val;
+                if (retain.test(entry)) {
+                    entries.add(entry);
+                } else if (notify && entry.isVisible(version) && (val = entry.getVal()) != null) {
+                    dropped.add(val);
+                }
+            }
+            alive[i] = entries;
+            expired[i] = dropped;
+        });
+        Generation<V> next = new Generation<>(alive, fields.size(), version);
+        int removes = current.entries() - next.entries();
+        buildUnique(next);
+        for (String name : current.mappedFields()) {
+            FieldMapping<V> source = current.getMapping(name);
+            FieldMapping<V> map = source.emptyCopy();
+            forEachSegment(segments, i -> map.copySegment(source, i, retain));
+            next.putMapping(name, map);
+        }
+        generation.set(next);
+        if (resultCache != null) {
+            resultCache.clear();
+        }
+        if (notify) {
+            Map<Object, V> changes = new HashMap<>();
+            for (List<V> dropped : expired) {
+                for (V val : dropped) {
+                    changes.put(identityOf(val), null);
+                }
+            }
+            publishChanges(changes);
         }
-        queries = 0;
         LOG.info("clear expired entries, number: {}, cost time: {} ms", removes, System.currentTimeMillis() - start);
     }
 
+    /**
+     * 多个等值条件的合取，保存每个条件的字段映射、键以及在每个分段中的条目列表
+     */
+    private static final class Conjunction<V> {
+        final FieldMapping<V>[] maps;
+        final Object[] keys;
+
+        /**
+         * 条目列表，每个分段占用连续的maps.length个位置
+         */
+        final EntryList<V>[] postings;
+
+        /**
+         * 估计的结果数量
+         */
+        int estimate;
+
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        Conjunction(int n, int segments) {
+            this.maps = new FieldMapping[n];
+            this.keys = new Object[n];
+            this.postings = new EntryList[segments * n];
+        }
+
+        boolean matches(V val) {
+            for (int j = 0; j < maps.length; ++j) {
+                if (!Objects.equals(maps[j].keyOf(val), keys[j])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 带有排序字段值的结果
+     */
+    private static final class Ranked<V> {
+        final Object key;
+        final ReferenceEntry<V> entry;
+        final V val;
+
+        Ranked(Object key, ReferenceEntry<V> entry, V val) {
+            this.key = key;
+            this.entry = entry;
+            this.val = val;
+        }
+    }
+
     interface ReferenceEntry<V> {
+        /**
+         * 获取创建此条目的版本
+         *
+         * @return 创建版本
+         */
+        long getVersion();
+
+        /**
+         * 获取删除此条目的版本，未被删除时为Long.MAX_VALUE
+         *
+         * @return 删除版本
+         */
+        long getRemovedVersion();
+
+        /**
+         * 设置删除此条目的版本。
+         * 只会在写锁内调用
+         *
+         * @param removedVersion 删除版本
+         */
+        void setRemovedVersion(long removedVersion);
+
+        /**
+         * 此条目在给定版本是否可见
+         *
+         * @param version 查询开始时读取的版本
+         * @return 如果可见，返回true
+         */
+        default boolean isVisible(long version) {
+            return getVersion() <= version && version < getRemovedVersion();
+        }
+
         /**
          * 设置写时间。
          * 只会在{@link #refresh()}方法调用中使用
@@ -374,19 +3324,46 @@ public class MultiDimensionCache<V> {
          * @return 引用值
          */
         V getVal();
+
+        /**
+         * 替换引用值，只会在全量刷新比较时用于替换字段映射没有变化的值。
+         * 只能在写锁内调用
+         *
+         * @param val 新值
+         * @return 如果此条目不支持替换引用值，返回false
+         */
+        boolean replaceVal(V val);
     }
 
     static class StrongEntry<V> implements ReferenceEntry<V> {
+        final long version;
+        volatile long removedVersion = Long.MAX_VALUE;
         long writeTime;
         long accessTime;
-        V val;
+        volatile V val;
 
-        StrongEntry(V val) {
+        StrongEntry(V val, long version) {
             this.val = val;
+            this.version = version;
             this.writeTime = System.nanoTime();
             this.accessTime = Long.MAX_VALUE;
         }
 
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        public long getRemovedVersion() {
+            return removedVersion;
+        }
+
+        @Override
+        public void setRemovedVersion(long removedVersion) {
+            this.removedVersion = removedVersion;
+        }
+
         @Override
         public void setWriteTime(long writeTime) {
             this.writeTime = writeTime;
@@ -411,18 +3388,42 @@ public class MultiDimensionCache<V> {
         public V getVal() {
             return val;
         }
+
+        @Override
+        public boolean replaceVal(V val) {
+            this.val = val;
+            return true;
+        }
     }
 
     static class WeakEntry<V> extends WeakReference<V> implements ReferenceEntry<V> {
+        final long version;
+        volatile long removedVersion = Long.MAX_VALUE;
         volatile long writeTime;
         volatile long accessTime;
 
-        WeakEntry(V val) {
+        WeakEntry(V val, long version) {
             super(val);
+            this.version = version;
             this.writeTime = System.nanoTime();
             this.accessTime = Long.MAX_VALUE;
         }
 
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        public long getRemovedVersion() {
+            return removedVersion;
+        }
+
+        @Override
+        public void setRemovedVersion(long removedVersion) {
+            this.removedVersion = removedVersion;
+        }
+
         @Override
         public void setWriteTime(long writeTime) {
             this.writeTime = writeTime;
@@ -447,18 +3448,41 @@ public class MultiDimensionCache<V> {
         public V getVal() {
             return this.get();
         }
+
+        @Override
+        public boolean replaceVal(V val) {
+            return false;
+        }
     }
 
     static class SoftEntry<V> extends SoftReference<V> implements ReferenceEntry<V> {
+        final long version;
+        volatile long removedVersion = Long.MAX_VALUE;
         volatile long writeTime;
         volatile long accessTime;
 
-        SoftEntry(V val) {
+        SoftEntry(V val, long version) {
             super(val);
+            this.version = version;
             this.writeTime = System.nanoTime();
             this.accessTime = Long.MAX_VALUE;
         }
 
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        public long getRemovedVersion() {
+            return removedVersion;
+        }
+
+        @Override
+        public void setRemovedVersion(long removedVersion) {
+            this.removedVersion = removedVersion;
+        }
+
         @Override
         public void setWriteTime(long writeTime) {
             this.writeTime = writeTime;
@@ -483,6 +3507,11 @@ public class MultiDimensionCache<V> {
         public V getVal() {
             return this.get();
         }
+
+        @Override
+        public boolean replaceVal(V val) {
+            return false;
+        }
     }
 
     static class SimpleStatsCounter implements StatsCounter {
@@ -533,8 +3562,8 @@ public class MultiDimensionCache<V> {
          */
         STRONG {
             @Override
-            <V> ReferenceEntry<V> referenceEntry(V val) {
-                return new StrongEntry<>(val);
+            <V> ReferenceEntry<V> referenceEntry(V val, long version) {
+                return new StrongEntry<>(val, version);
             }
         },
         /**
@@ -542,8 +3571,8 @@ public class MultiDimensionCache<V> {
          */
         SOFT {
             @Override
-            <V> ReferenceEntry<V> referenceEntry(V val) {
-                return new SoftEntry<>(val);
+            <V> ReferenceEntry<V> referenceEntry(V val, long version) {
+                return new SoftEntry<>(val, version);
             }
         },
         /**
@@ -551,12 +3580,12 @@ public class MultiDimensionCache<V> {
          */
         WEAK {
             @Override
-            <V> ReferenceEntry<V> referenceEntry(V val) {
-                return new WeakEntry<>(val);
+            <V> ReferenceEntry<V> referenceEntry(V val, long version) {
+                return new WeakEntry<>(val, version);
             }
         };
 
-        abstract <V> ReferenceEntry<V> referenceEntry(V val);
+        abstract <V> ReferenceEntry<V> referenceEntry(V val, long version);
     }
 
     interface StatsCounter {
@@ -603,6 +3632,10 @@ public class MultiDimensionCache<V> {
         CacheStats snapshot();
     }
 
+    private boolean isAlive(ReferenceEntry<V> entry, long version, long now) {
+        return entry.isVisible(version) && isAlive(entry, now);
+    }
+
     private boolean isAlive(ReferenceEntry<V> entry, long now) {
         if (expireAfterWriteNanos == 0 && expireAfterAccessNanos == 0) {
             return true;
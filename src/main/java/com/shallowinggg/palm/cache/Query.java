@@ -0,0 +1,87 @@
+package com.shallowinggg.palm.cache;
+
+import java.util.List;
+
+import static com.shallowinggg.palm.PreConditions.checkNotNull;
+
+/**
+ * 缓存查询，通过{@link MultiDimensionCache#query()}创建，多次调用{@link #where(Condition)}
+ * 添加的条件之间为and关系。
+ * <p>
+ * 执行时根据当前代的字段映射为条件生成计划：等值条件使用字段映射，有序字段的范围条件使用有序映射，
+ * and条件从估计结果最少的子条件出发并用其余子条件过滤，or条件在所有子条件都可以使用映射时合并各自的结果；
+ * 只有没有任何映射可用时才遍历全部记录。{@link #explain()}返回生成的计划以及每一步估计的记录数。
+ * <p>
+ * 查询对象不保存结果，可以重复执行，每次执行都基于执行时的数据。
+ *
+ * @author shallowinggg
+ */
+public final class Query<V> {
+    private final MultiDimensionCache<V> cache;
+    private Condition condition;
+
+    Query(MultiDimensionCache<V> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * 添加条件，与已有的条件为and关系
+     *
+     * @param condition 条件
+     * @return this
+     */
+    public Query<V> where(Condition condition) {
+        checkNotNull(condition);
+        this.condition = (this.condition == null) ? condition : Condition.and(this.condition, condition);
+        return this;
+    }
+
+    public Query<V> eq(String field, Object value) {
+        return where(Condition.eq(field, value));
+    }
+
+    public Query<V> in(String field, Object... values) {
+        return where(Condition.in(field, values));
+    }
+
+    public Query<V> range(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        return where(Condition.range(field, from, fromInclusive, to, toInclusive));
+    }
+
+    public Query<V> not(Condition condition) {
+        return where(Condition.not(condition));
+    }
+
+    /**
+     * 执行查询
+     * 注意：如果没有满足条件的记录，那么返回Collections.emptyList()
+     *
+     * @return 满足条件的记录
+     */
+    public List<V> list() {
+        return cache.select(condition);
+    }
+
+    /**
+     * 执行查询，只返回满足条件的记录数
+     *
+     * @return 记录数
+     */
+    public int count() {
+        return cache.selectCount(condition);
+    }
+
+    /**
+     * 返回基于当前数据生成的查询计划，每一行为一个步骤，缩进表示步骤之间的嵌套关系
+     *
+     * @return 查询计划
+     */
+    public String explain() {
+        return cache.explain(condition);
+    }
+
+    @Override
+    public String toString() {
+        return "Query{" + (condition == null ? "all" : condition) + '}';
+    }
+}
@@ -0,0 +1,251 @@
+package com.shallowinggg.palm.cache;
+
+import com.shallowinggg.palm.cache.MultiDimensionCache.ReferenceEntry;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * {@link Query}的执行计划，由{@link MultiDimensionCache}根据当前代的字段映射生成。
+ * <p>
+ * 每个步骤按分段产生满足其条件的条目，估计的记录数在生成计划时根据条目列表的长度计算，
+ * 没有扣除已经删除或者过期的条目，因此是一个上界。
+ *
+ * @author shallowinggg
+ */
+abstract class QueryPlan<V> {
+    private final Condition condition;
+    private final int estimate;
+
+    QueryPlan(Condition condition, int estimate) {
+        this.condition = condition;
+        this.estimate = estimate;
+    }
+
+    int estimate() {
+        return estimate;
+    }
+
+    /**
+     * 对分段中每个可见并且满足条件的条目调用action
+     *
+     * @param segment 分段下标
+     * @param alive   条目是否可见并且未过期
+     * @param action  参数为条目以及条目的值
+     */
+    abstract void forEach(int segment, Predicate<ReferenceEntry<V>> alive, BiConsumer<ReferenceEntry<V>, V> action);
+
+    abstract String name();
+
+    void explain(StringBuilder sb, int depth) {
+        for (int i = 0; i < depth; ++i) {
+            sb.append("  ");
+        }
+        sb.append(name()).append('(').append(condition == null ? "all" : condition)
+                .append(") estimate=").append(estimate).append('\n');
+    }
+
+    static <V> void accept(EntryList<V> entries, Predicate<ReferenceEntry<V>> alive,
+                           BiConsumer<ReferenceEntry<V>, V> action) {
+        if (entries == null) {
+            return;
+        }
+        for (ReferenceEntry<V> entry : entries) {
+            V val;
+            if (alive.test(entry) && (val = entry.getVal()) != null) {
+                action.accept(entry, val);
+            }
+        }
+    }
+
+    /**
+     * 通过字段映射查找等值条件
+     */
+    static final class IndexLookup<V> extends QueryPlan<V> {
+        private final FieldMapping<V> map;
+        private final Object[] keys;
+
+        IndexLookup(Condition.In condition, FieldMapping<V> map, int segments) {
+            super(condition, estimate(map, condition.values, segments));
+            this.map = map;
+            this.keys = condition.values;
+        }
+
+        private static <V> int estimate(FieldMapping<V> map, Object[] keys, int segments) {
+            int n = 0;
+            for (int i = 0; i < segments; ++i) {
+                for (Object key : keys) {
+                    EntryList<V> entries = map.get(i, key);
+                    n += entries == null ? 0 : entries.size();
+                }
+            }
+            return n;
+        }
+
+        @Override
+        void forEach(int segment, Predicate<ReferenceEntry<V>> alive, BiConsumer<ReferenceEntry<V>, V> action) {
+            for (Object key : keys) {
+                accept(map.get(segment, key), alive, action);
+            }
+        }
+
+        @Override
+        String name() {
+            return "IndexLookup";
+        }
+    }
+
+    /**
+     * 通过有序映射查找范围条件
+     */
+    static final class RangeScan<V> extends QueryPlan<V> {
+        private final FieldMapping<V> map;
+        private final Condition.Range range;
+
+        RangeScan(Condition.Range range, FieldMapping<V> map, int segments) {
+            super(range, estimate(map, range, segments));
+            this.map = map;
+            this.range = range;
+        }
+
+        private static <V> int estimate(FieldMapping<V> map, Condition.Range range, int segments) {
+            int n = 0;
+            for (int i = 0; i < segments; ++i) {
+                for (EntryList<V> entries : entries(map, range, i)) {
+                    n += entries.size();
+                }
+            }
+            return n;
+        }
+
+        private static <V> Collection<EntryList<V>> entries(FieldMapping<V> map, Condition.Range range, int segment) {
+            return map.range(segment, range.from, range.fromInclusive, range.to, range.toInclusive);
+        }
+
+        @Override
+        void forEach(int segment, Predicate<ReferenceEntry<V>> alive, BiConsumer<ReferenceEntry<V>, V> action) {
+            for (EntryList<V> entries : entries(map, range, segment)) {
+                accept(entries, alive, action);
+            }
+        }
+
+        @Override
+        String name() {
+            return "RangeScan";
+        }
+    }
+
+    /**
+     * 从一个步骤出发，使用其余条件过滤
+     */
+    static final class Filter<V> extends QueryPlan<V> {
+        private final QueryPlan<V> driver;
+        private final Predicate<V> residual;
+
+        Filter(Condition residualCondition, QueryPlan<V> driver, Predicate<V> residual) {
+            super(residualCondition, driver.estimate());
+            this.driver = driver;
+            this.residual = residual;
+        }
+
+        @Override
+        void forEach(int segment, Predicate<ReferenceEntry<V>> alive, BiConsumer<ReferenceEntry<V>, V> action) {
+            driver.forEach(segment, alive, (entry, val) -> {
+                if (residual.test(val)) {
+                    action.accept(entry, val);
+                }
+            });
+        }
+
+        @Override
+        String name() {
+            return "Filter";
+        }
+
+        @Override
+        void explain(StringBuilder sb, int depth) {
+            super.explain(sb, depth);
+            driver.explain(sb, depth + 1);
+        }
+    }
+
+    /**
+     * 合并多个步骤的结果，同时满足多个子条件的条目只在第一个子条件中产生
+     */
+    static final class Union<V> extends QueryPlan<V> {
+        private final List<QueryPlan<V>> plans;
+        private final List<Predicate<V>> predicates;
+
+        Union(Condition condition, List<QueryPlan<V>> plans, List<Predicate<V>> predicates) {
+            super(condition, sum(plans));
+            this.plans = plans;
+            this.predicates = predicates;
+        }
+
+        private static <V> int sum(List<QueryPlan<V>> plans) {
+            long n = 0;
+            for (QueryPlan<V> plan : plans) {
+                n += plan.estimate();
+            }
+            return (int) Math.min(n, Integer.MAX_VALUE);
+        }
+
+        @Override
+        void forEach(int segment, Predicate<ReferenceEntry<V>> alive, BiConsumer<ReferenceEntry<V>, V> action) {
+            for (int k = 0; k < plans.size(); ++k) {
+                final int current = k;
+                plans.get(k).forEach(segment, alive, (entry, val) -> {
+                    for (int j = 0; j < current; ++j) {
+                        if (predicates.get(j).test(val)) {
+                            return;
+                        }
+                    }
+                    action.accept(entry, val);
+                });
+            }
+        }
+
+        @Override
+        String name() {
+            return "Union";
+        }
+
+        @Override
+        void explain(StringBuilder sb, int depth) {
+            super.explain(sb, depth);
+            for (QueryPlan<V> plan : plans) {
+                plan.explain(sb, depth + 1);
+            }
+        }
+    }
+
+    /**
+     * 遍历分段中的所有条目
+     */
+    static final class Scan<V> extends QueryPlan<V> {
+        private final EntryList<V>[] values;
+        private final Predicate<V> predicate;
+
+        Scan(Condition condition, EntryList<V>[] values, int size, Predicate<V> predicate) {
+            super(condition, size);
+            this.values = values;
+            this.predicate = predicate;
+        }
+
+        @Override
+        void forEach(int segment, Predicate<ReferenceEntry<V>> alive, BiConsumer<ReferenceEntry<V>, V> action) {
+            accept(values[segment], alive, (entry, val) -> {
+                if (predicate == null || predicate.test(val)) {
+                    action.accept(entry, val);
+                }
+            });
+        }
+
+        @Override
+        String name() {
+            return "Scan";
+        }
+    }
+}
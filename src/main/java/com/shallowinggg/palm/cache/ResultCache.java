@@ -0,0 +1,173 @@
+package com.shallowinggg.palm.cache;
+
+import com.shallowinggg.palm.cache.MultiDimensionCache.ReferenceEntry;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 查询结果缓存，以字段名称以及字段值列表为键，保存不可变的查询结果。
+ * <p>
+ * 结果只在计算它的代以及版本上有效，任何写入或者刷新都会使所有结果失效。
+ * 结果中最早的写后过期时间到达之后，或者超过读后过期时间没有被读取，结果同样失效。
+ * 命中时更新结果中所有条目的访问时间，与直接查询的效果相同。
+ * <p>
+ * 结果数超过上限时移除任意一个结果，不维护访问顺序，避免命中时的额外开销。
+ *
+ * @author shallowinggg
+ */
+final class ResultCache<V> {
+    private final int maximumSize;
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+    private final ConcurrentHashMap<Key, Result<V>> results;
+
+    /**
+     * 当前结果所属的代以及版本
+     */
+    private volatile Generation<V> owner;
+    private volatile long ownerVersion;
+
+    ResultCache(int maximumSize, long expireAfterWriteNanos, long expireAfterAccessNanos) {
+        this.maximumSize = maximumSize;
+        this.expireAfterWriteNanos = expireAfterWriteNanos;
+        this.expireAfterAccessNanos = expireAfterAccessNanos;
+        this.results = new ConcurrentHashMap<>(Math.min(maximumSize, 1 << 10));
+    }
+
+    /**
+     * 获取有效的结果
+     *
+     * @param field   字段名称
+     * @param values  字段值列表
+     * @param gen     查询使用的代
+     * @param version 查询版本
+     * @param now     当前时间
+     * @return 结果，如果不存在或者已经失效返回null
+     */
+    List<V> get(String field, Object[] values, Generation<V> gen, long version, long now) {
+        if (gen != owner || version != ownerVersion) {
+            return null;
+        }
+        Key key = new Key(field, values);
+        Result<V> r = results.get(key);
+        if (r == null) {
+            return null;
+        }
+        if (r.gen != gen || r.version != version
+                || (expireAfterWriteNanos != 0 && now - r.deadline >= 0)
+                || (expireAfterAccessNanos != 0 && now - r.accessTime >= expireAfterAccessNanos)) {
+            results.remove(key, r);
+            return null;
+        }
+        if (expireAfterAccessNanos != 0) {
+            r.accessTime = now;
+            for (ReferenceEntry<V> entry : r.entries) {
+                entry.setAccessTime(now);
+            }
+        }
+        return r.values;
+    }
+
+    /**
+     * 保存结果，调用者需要保证gen为当前代并且version为其当前版本
+     *
+     * @param field   字段名称
+     * @param values  字段值列表，不会被复制，调用者不能再修改
+     * @param gen     查询使用的代
+     * @param version 查询版本
+     * @param entries 结果对应的条目
+     * @param result  不可变的结果
+     * @param now     计算结果时的时间
+     */
+    void put(String field, Object[] values, Generation<V> gen, long version,
+             List<ReferenceEntry<V>> entries, List<V> result, long now) {
+        if (gen != owner || version != ownerVersion) {
+            synchronized (this) {
+                if (gen != owner || version != ownerVersion) {
+                    results.clear();
+                    owner = gen;
+                    ownerVersion = version;
+                }
+            }
+        }
+        long deadline = 0;
+        if (expireAfterWriteNanos != 0) {
+            long oldest = now;
+            for (ReferenceEntry<V> entry : entries) {
+                if (entry.getWriteTime() - oldest < 0) {
+                    oldest = entry.getWriteTime();
+                }
+            }
+            deadline = oldest + expireAfterWriteNanos;
+        }
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        ReferenceEntry<V>[] touched = expireAfterAccessNanos == 0 ? null : entries.toArray(new ReferenceEntry[0]);
+        if (results.size() >= maximumSize) {
+            Iterator<Key> it = results.keySet().iterator();
+            if (it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        results.put(new Key(field, values), new Result<>(gen, version, deadline, now, touched, result));
+    }
+
+    /**
+     * 移除所有结果，在发布新的一代或者新的版本之后调用，使旧的一代可以被回收
+     */
+    synchronized void clear() {
+        results.clear();
+        owner = null;
+    }
+
+    private static final class Key {
+        final String field;
+        final Object[] values;
+        final int hash;
+
+        Key(String field, Object[] values) {
+            this.field = field;
+            this.values = values;
+            this.hash = 31 * field.hashCode() + Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && field.equals(other.field) && Arrays.equals(values, other.values);
+        }
+    }
+
+    private static final class Result<V> {
+        final Generation<V> gen;
+        final long version;
+        final long deadline;
+        volatile long accessTime;
+        final ReferenceEntry<V>[] entries;
+        final List<V> values;
+
+        Result(Generation<V> gen, long version, long deadline, long accessTime,
+               ReferenceEntry<V>[] entries, List<V> values) {
+            this.gen = gen;
+            this.version = version;
+            this.deadline = deadline;
+            this.accessTime = accessTime;
+            this.entries = entries;
+            this.values = values;
+        }
+    }
+}
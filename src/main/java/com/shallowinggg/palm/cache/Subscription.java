@@ -0,0 +1,164 @@
+package com.shallowinggg.palm.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * 订阅，通过{@link MultiDimensionCache#subscribe(String, Object, Consumer)}或者
+ * {@link MultiDimensionCache#subscribe(Predicate, Consumer)}创建。
+ * <p>
+ * 订阅保存上一次通知时满足条件的记录。每次写入或者刷新时，缓存只计算一次发生变化的记录并交给所有订阅，
+ * 订阅在通知执行器中只对这些记录判断条件，与保存的记录比较后将变化通知监听器，不会重新遍历全部记录。
+ * 同一个订阅的通知不会并发执行，通知期间发生的多次修改合并为一次通知，
+ * 因此监听器总是按照修改的顺序收到变化，但不一定收到每个中间版本。
+ * <p>
+ * 过期的记录在清理过期条目或者全量刷新之后才会作为删除的记录通知。
+ *
+ * @param <V> 缓存值类型
+ * @author shallowinggg
+ */
+public final class Subscription<V> {
+    private static final Logger LOG = LoggerFactory.getLogger(Subscription.class);
+
+    private final MultiDimensionCache<V> cache;
+    private final Predicate<? super V> predicate;
+    private final Consumer<? super ChangeEvent<V>> listener;
+    private final Executor executor;
+
+    /**
+     * 尚未处理的变化，每个元素为一次写入或者刷新中标识到新值的映射，被删除的记录对应null
+     */
+    private final Queue<Map<Object, V>> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 是否已经提交通知任务
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private volatile boolean cancelled;
+
+    /**
+     * 上一次通知时满足条件的记录，只由通知任务访问
+     */
+    private final Map<Object, V> last;
+
+    Subscription(MultiDimensionCache<V> cache, Map<Object, V> initial, Predicate<? super V> predicate,
+                 Consumer<? super ChangeEvent<V>> listener, Executor executor) {
+        this.cache = cache;
+        this.last = initial;
+        this.predicate = predicate;
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    /**
+     * 取消订阅，已经开始的通知仍会完成
+     */
+    public void cancel() {
+        cancelled = true;
+        cache.unsubscribe(this);
+        pending.clear();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 缓存发生修改，由写线程或者刷新线程在写锁内调用
+     *
+     * @param changes 发生变化的记录，调用者之后不能再修改
+     */
+    void changed(Map<Object, V> changes) {
+        if (cancelled) {
+            return;
+        }
+        pending.add(changes);
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                LOG.warn("Notification executor rejected subscription task", e);
+            }
+        }
+    }
+
+    private void drain() {
+        for (;;) {
+            if (cancelled) {
+                pending.clear();
+            } else {
+                try {
+                    notifyChanges();
+                } catch (Throwable t) {
+                    LOG.warn("Notify subscription fail", t);
+                }
+            }
+            scheduled.set(false);
+            if (pending.isEmpty() || cancelled || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void notifyChanges() {
+        // 每个变化的记录在本次通知之前的值，不满足条件时为null
+        Map<Object, V> before = new HashMap<>();
+        Map<Object, V> changes;
+        while ((changes = pending.poll()) != null) {
+            for (Map.Entry<Object, V> e : changes.entrySet()) {
+                Object key = e.getKey();
+                V val = e.getValue();
+                if (!before.containsKey(key)) {
+                    before.put(key, last.get(key));
+                }
+                if (val != null && predicate.test(val)) {
+                    last.put(key, val);
+                } else {
+                    last.remove(key);
+                }
+            }
+        }
+
+        List<V> added = new ArrayList<>();
+        List<V> removed = new ArrayList<>();
+        List<V> changed = new ArrayList<>();
+        List<V> previous = new ArrayList<>();
+        for (Map.Entry<Object, V> e : before.entrySet()) {
+            V old = e.getValue();
+            V val = last.get(e.getKey());
+            if (old == null) {
+                if (val != null) {
+                    added.add(val);
+                }
+            } else if (val == null) {
+                removed.add(old);
+            } else if (old != val && !Objects.equals(old, val)) {
+                changed.add(val);
+                previous.add(old);
+            }
+        }
+
+        ChangeEvent<V> event = new ChangeEvent<>(Collections.unmodifiableList(added),
+                Collections.unmodifiableList(removed), Collections.unmodifiableList(changed),
+                Collections.unmodifiableList(previous));
+        if (!event.isEmpty()) {
+            listener.accept(event);
+        }
+    }
+}
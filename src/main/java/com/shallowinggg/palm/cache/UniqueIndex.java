@@ -0,0 +1,179 @@
+package com.shallowinggg.palm.cache;
+
+import com.shallowinggg.palm.cache.MultiDimensionCache.ReferenceEntry;
+import com.shallowinggg.palm.reflect.MethodWrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 唯一索引，字段值直接映射到唯一的条目，不为每个字段值创建条目列表。
+ * <p>
+ * 增量修改时新旧条目不能在一次写入中同时替换，因此写线程在发布新版本之前先放入同时持有新旧条目的
+ * {@link Transition}，查询根据读取到的版本选择其中可见的一个；新版本发布之后再将其替换为最终的条目。
+ * 查询先读取索引再读取版本号，如果得到的条目在此版本不可见并且索引已经变化，那么重新读取，
+ * 因此查询总是返回某个已经发布版本中的值。
+ * <p>
+ * 字段值为null的条目不会加入唯一索引。
+ *
+ * @author shallowinggg
+ */
+final class UniqueIndex<V> {
+    private final MethodWrapper method;
+    private final ConcurrentHashMap<Object, Object> map;
+
+    /**
+     * 本次修改涉及的字段值，只由写线程访问
+     */
+    private final List<Object> touched = new ArrayList<>();
+
+    /**
+     * 本次修改前字段值对应的节点，用于撤销修改，只由写线程访问
+     */
+    private final List<Object> previous = new ArrayList<>();
+
+    UniqueIndex(MethodWrapper method, int initialCapacity) {
+        this.method = method;
+        this.map = new ConcurrentHashMap<>(initialCapacity);
+    }
+
+    /**
+     * 在构建时加入条目，可以由多个线程同时调用
+     *
+     * @param entry 条目
+     * @return 如果字段值已经存在，返回已有的条目，此条目不会加入索引
+     */
+    @SuppressWarnings("unchecked")
+    ReferenceEntry<V> putIfAbsent(ReferenceEntry<V> entry) {
+        V val = entry.getVal();
+        Object key;
+        if (val == null || (key = keyOf(val)) == null) {
+            return null;
+        }
+        return (ReferenceEntry<V>) map.putIfAbsent(key, entry);
+    }
+
+    /**
+     * 获取字段值对应的条目
+     *
+     * @param key 字段值
+     * @param gen 索引所属的代
+     * @return 在读取到的版本可见的条目，如果不存在返回null
+     */
+    ReferenceEntry<V> get(Object key, Generation<V> gen) {
+        if (key == null) {
+            return null;
+        }
+        for (;;) {
+            Object node = map.get(key);
+            if (node == null) {
+                return null;
+            }
+            ReferenceEntry<V> entry = resolve(node, gen.version);
+            if (entry != null || map.get(key) == node) {
+                return entry;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ReferenceEntry<V> resolve(Object node, long version) {
+        if (node instanceof Transition) {
+            Transition<V> t = (Transition<V>) node;
+            if (t.next.isVisible(version)) {
+                return t.next;
+            }
+            return t.old != null && t.old.isVisible(version) ? t.old : null;
+        }
+        ReferenceEntry<V> entry = (ReferenceEntry<V>) node;
+        return entry.isVisible(version) ? entry : null;
+    }
+
+    /**
+     * 在发布新版本之前加入新条目，只能由写线程调用
+     *
+     * @param entry 新条目
+     */
+    @SuppressWarnings("unchecked")
+    void stage(ReferenceEntry<V> entry) {
+        Object key = keyOf(entry.getVal());
+        if (key == null) {
+            return;
+        }
+        Object node = map.get(key);
+        touched.add(key);
+        previous.add(node);
+        ReferenceEntry<V> old = node instanceof Transition ? ((Transition<V>) node).old : (ReferenceEntry<V>) node;
+        map.put(key, old == null ? entry : new Transition<>(old, entry));
+    }
+
+    /**
+     * 记录被删除的条目，新版本发布之后从索引中移除，只能由写线程调用
+     *
+     * @param entry 被删除的条目
+     */
+    void stageRemoval(ReferenceEntry<V> entry) {
+        V val = entry.getVal();
+        Object key;
+        if (val != null && (key = keyOf(val)) != null) {
+            touched.add(key);
+            previous.add(map.get(key));
+        }
+    }
+
+    /**
+     * 新版本发布之后，将涉及的字段值替换为在此版本可见的条目，只能由写线程调用
+     *
+     * @param version 新版本
+     */
+    void settle(long version) {
+        for (Object key : touched) {
+            Object node = map.get(key);
+            if (node == null) {
+                continue;
+            }
+            ReferenceEntry<V> entry = resolve(node, version);
+            if (entry == null) {
+                map.remove(key, node);
+            } else if (entry != node) {
+                map.replace(key, node, entry);
+            }
+        }
+        touched.clear();
+        previous.clear();
+    }
+
+    /**
+     * 撤销本次修改，只能由写线程在发布新版本之前调用
+     */
+    void rollback() {
+        for (int i = touched.size() - 1; i >= 0; --i) {
+            Object node = previous.get(i);
+            if (node == null) {
+                map.remove(touched.get(i));
+            } else {
+                map.put(touched.get(i), node);
+            }
+        }
+        touched.clear();
+        previous.clear();
+    }
+
+    Object keyOf(V val) {
+        return FieldMapping.invoke(method, val);
+    }
+
+    /**
+     * 正在被替换的字段值，同时持有旧条目以及新条目
+     */
+    static final class Transition<V> {
+        final ReferenceEntry<V> old;
+        final ReferenceEntry<V> next;
+
+        Transition(ReferenceEntry<V> old, ReferenceEntry<V> next) {
+            this.old = old;
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.shallowinggg.palm.concurrent;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 为线程指定名称前缀以及是否为守护线程的{@link ThreadFactory}。
+ * 线程名称为 prefix-序号，序号从1开始。
+ *
+ * @author shallowinggg
+ */
+public class NamedThreadFactory implements ThreadFactory {
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+    private final String prefix;
+    private final boolean daemon;
+
+    public NamedThreadFactory(String prefix, boolean daemon) {
+        this.prefix = prefix;
+        this.daemon = daemon;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + "-" + threadNumber.getAndIncrement());
+        t.setDaemon(daemon);
+        return t;
+    }
+}
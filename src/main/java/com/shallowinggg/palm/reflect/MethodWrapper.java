@@ -77,6 +77,10 @@ public class MethodWrapper {
         return method.getName();
     }
 
+    public Class<?> getReturnType() {
+        return method.getReturnType();
+    }
+
     static {
         lookup = MethodHandles.lookup();
     }
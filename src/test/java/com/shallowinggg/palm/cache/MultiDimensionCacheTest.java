@@ -0,0 +1,1079 @@
+package com.shallowinggg.palm.cache;
+
+import com.shallowinggg.palm.reflect.TypeReference;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class MultiDimensionCacheTest {
+
+    @Test
+    public void testGetMappingValues() {
+        MultiDimensionCache<User> cache = newCache(new UserLoader(users(100)));
+
+        assertEquals(100, cache.size());
+        assertEquals(100, cache.getMappingValues("city").size());
+        assertEquals(10, cache.getMappingValues("city", "city3").size());
+        assertEquals(20, cache.getMappingValues("city", "city3", "city4").size());
+        assertEquals(0, cache.getMappingValues("city", "unknown").size());
+    }
+
+    @Test
+    public void testRefreshRebuildsMapping() {
+        UserLoader loader = new UserLoader(users(100));
+        MultiDimensionCache<User> cache = newCache(loader);
+        assertEquals(10, cache.getMappingValues("city", "city3").size());
+
+        loader.users = users(50);
+        cache.refresh();
+        assertEquals(50, cache.size());
+        assertEquals(5, cache.getMappingValues("city", "city3").size());
+    }
+
+    @Test
+    public void testQueryDuringRefresh() throws Exception {
+        UserLoader loader = new UserLoader(users(1000));
+        MultiDimensionCache<User> cache = newCache(loader);
+        cache.mappingValues("city");
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger running = new AtomicInteger(4);
+        CountDownLatch done = new CountDownLatch(4);
+        for (int i = 0; i < 4; ++i) {
+            new Thread(() -> {
+                try {
+                    for (int j = 0; j < 2000; ++j) {
+                        int size = cache.getMappingValues("city", "city1").size();
+                        if (size != 100 && size != 200) {
+                            throw new AssertionError("torn result: " + size);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            }).start();
+        }
+        while (running.get() > 0) {
+            loader.users = users(loader.users.size() == 1000 ? 2000 : 1000);
+            cache.refresh();
+        }
+        done.await();
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testConcurrentMappingBuildsOnce() throws Exception {
+        AtomicInteger invocations = new AtomicInteger();
+        List<User> users = users(1000);
+        MultiDimensionCache<WideUser> cache = CacheBuilder.newBuilder().build(new CacheLoader<WideUser>() {
+            @Override
+            public List<WideUser> load() {
+                List<WideUser> list = new ArrayList<>();
+                for (User user : users) {
+                    list.add(new WideUser(user.getId(), invocations));
+                }
+                return list;
+            }
+        }, new TypeReference<WideUser>() {});
+
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(8);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < 8; ++i) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    assertEquals(1, cache.getMappingValues("f70", 7L).size());
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assertNull(failure.get());
+        assertEquals(1000, invocations.get());
+    }
+
+    @Test
+    public void testIncrementalRefresh() {
+        UserLoader loader = new UserLoader(users(100));
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id")
+                .build(loader, new TypeReference<User>() {});
+        assertEquals(10, cache.getMappingValues("city", "city3").size());
+
+        loader.changes = new CacheChanges<>(
+                Arrays.asList(new User(3, "user3", "cityX", 3), new User(1000, "user1000", "city3", 1)),
+                Collections.singletonList(new User(13, null, null, 0)), 1L);
+        cache.refresh();
+
+        assertEquals(100, cache.size());
+        assertEquals(9, cache.getMappingValues("city", "city3").size());
+        assertEquals(1, cache.getMappingValues("city", "cityX").size());
+        assertEquals(1, cache.getMappingValues("id", 1000L).size());
+        // 新字段的映射只包含可见的条目
+        assertEquals(1, cache.getMappingValues("name", "user3").size());
+        assertEquals(0, cache.getMappingValues("name", "user13").size());
+
+        loader.changes = CacheChanges.empty(2L);
+        cache.refresh();
+        assertEquals(1L, loader.watermark);
+        assertEquals(100, cache.size());
+    }
+
+    @Test
+    public void testReloadByDiff() {
+        UserLoader loader = new UserLoader(users(100));
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").reloadByDiff()
+                .resultCacheSize(8).notificationExecutor(Runnable::run)
+                .build(loader, new TypeReference<User>() {});
+        assertEquals(10, cache.getMappingValues("city", "city3").size());
+        List<ChangeEvent<User>> events = new ArrayList<>();
+        cache.subscribe("city", "city3", events::add);
+        Generation<User> gen = cache.generation();
+
+        List<User> users = users(100);
+        users.set(3, new User(3, "renamed", "city3", 3));
+        users.set(4, new User(4, "user4", "city3", 4));
+        users.remove(13);
+        loader.users = users;
+        cache.refresh();
+
+        assertEquals(99, cache.size());
+        assertEquals(10, cache.getMappingValues("city", "city3").size());
+        assertEquals(9, cache.getMappingValues("city", "city4").size());
+        assertEquals("renamed", cache.getMappingValues("id", 3L).get(0).getName());
+        assertEquals(0, cache.getMappingValues("id", 13L).size());
+        // 内容变化的记录发布新版本，结果缓存失效并通知订阅
+        assertEquals(1, cache.scan(user -> user.getName().equals("renamed")).size());
+        assertTrue(cache.getMappingValues("city", "city3").stream().anyMatch(user -> user.getName().equals("renamed")));
+        assertEquals(1, events.size());
+        assertTrue(events.get(0).getChanged().stream().anyMatch(user -> user.getName().equals("renamed")));
+        assertSame(gen, cache.generation());
+
+        // 变化的条目过多时构建新的一代
+        loader.users = users(50);
+        cache.refresh();
+        assertNotSame(gen, cache.generation());
+        assertEquals(50, cache.size());
+        assertEquals(5, cache.getMappingValues("city", "city3").size());
+        assertEquals("user3", cache.getMappingValues("id", 3L).get(0).getName());
+    }
+
+    @Test
+    public void testPointWrites() {
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id")
+                .build(new UserLoader(users(100)), new TypeReference<User>() {});
+        assertEquals(10, cache.getMappingValues("city", "city3").size());
+
+        cache.put(new User(1000, "user1000", "city3", 1));
+        cache.put(new User(3, "user3", "cityX", 3));
+        assertTrue(cache.replace(new User(4, null, null, 0), new User(1001, "user1001", "city3", 1)));
+        assertFalse(cache.replace(new User(2000, null, null, 0), new User(2001, "user2001", "city3", 1)));
+        assertTrue(cache.remove(new User(13, null, null, 0)));
+        assertFalse(cache.remove(new User(13, null, null, 0)));
+
+        assertEquals(100, cache.size());
+        assertEquals(10, cache.getMappingValues("city", "city3").size());
+        assertEquals(1, cache.getMappingValues("city", "cityX").size());
+        assertEquals(9, cache.getMappingValues("city", "city4").size());
+        assertEquals(0, cache.getMappingValues("id", 4L).size());
+    }
+
+    @Test
+    public void testClearExpiredEntries() {
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").clearExpireThreshold(1)
+                .build(new UserLoader(users(100)), new TypeReference<User>() {});
+        Generation<User> gen = cache.generation();
+        assertEquals(10, cache.getMappingValues("city", "city3").size());
+        assertEquals(10, cache.getMappingValues("city", "city3").size());
+        // 没有需要清除的条目时保留当前代
+        assertSame(gen, cache.generation());
+
+        assertTrue(cache.remove(new User(13, null, null, 0)));
+        assertEquals(9, cache.getMappingValues("city", "city3").size());
+        assertNotSame(gen, cache.generation());
+        assertEquals(99, cache.generation().entries());
+        assertEquals(9, cache.getMappingValues("city", "city3").size());
+    }
+
+    @Test
+    public void testQueryDuringWrites() throws Exception {
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id")
+                .build(new UserLoader(users(1000)), new TypeReference<User>() {});
+        cache.mappingValues("city");
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicInteger running = new AtomicInteger(4);
+        CountDownLatch done = new CountDownLatch(4);
+        for (int i = 0; i < 4; ++i) {
+            new Thread(() -> {
+                try {
+                    for (int j = 0; j < 5000; ++j) {
+                        int size = cache.getMappingValues("city", "city1", "city2").size();
+                        if (size != 200) {
+                            throw new AssertionError("torn result: " + size);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            }).start();
+        }
+        for (int i = 0; running.get() > 0; ++i) {
+            long id = (i % 100) * 10 + 1;
+            String city = (i / 100) % 2 == 0 ? "city2" : "city1";
+            cache.put(new User(id, "user" + id, city, 0));
+        }
+        done.await();
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testSegments() {
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").concurrencyLevel(4)
+                .build(new UserLoader(users(100000)), new TypeReference<User>() {});
+
+        assertEquals(100000, cache.size());
+        assertEquals(100000, cache.getMappingValues("city").size());
+        assertEquals(10000, cache.getMappingValues("city", "city3").size());
+        assertEquals(20000, cache.getMappingValues("city", "city3", "city4").size());
+        assertEquals(1, cache.getMappingValues("id", 12345L).size());
+
+        for (int i = 0; i < 10; ++i) {
+            cache.put(new User(200000 + i, "new", "city3", 0));
+        }
+        assertTrue(cache.remove(new User(3, null, null, 0)));
+        assertEquals(100009, cache.size());
+        assertEquals(10009, cache.getMappingValues("city", "city3").size());
+        assertEquals(10, cache.getMappingValues("name", "new").size());
+    }
+
+    @Test
+    public void testRefreshAsyncCoalesces() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger reloads = new AtomicInteger();
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().build(new CacheLoader<User>() {
+            @Override
+            public List<User> load() {
+                return users(100);
+            }
+
+            @Override
+            public List<User> reload() throws Exception {
+                reloads.incrementAndGet();
+                loading.countDown();
+                release.await();
+                return users(50);
+            }
+        }, new TypeReference<User>() {});
+
+        CompletableFuture<Void> first = cache.refreshAsync();
+        loading.await();
+        assertSame(first, cache.refreshAsync());
+        // 刷新期间继续使用旧的数据
+        assertEquals(100, cache.size());
+
+        release.countDown();
+        first.get(10, TimeUnit.SECONDS);
+        assertEquals(1, reloads.get());
+        assertEquals(50, cache.size());
+    }
+
+    @Test
+    public void testIndexFields() {
+        UserLoader loader = new UserLoader(users(100));
+        ForkJoinPool pool = new ForkJoinPool(2);
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().indexFields("city", "age").concurrencyLevel(2)
+                .forkJoinPool(pool).build(loader, new TypeReference<User>() {});
+
+        Generation<User> gen = cache.generation();
+        assertNotNull(gen.getMapping("city"));
+        assertNotNull(gen.getMapping("age"));
+        assertNull(gen.getMapping("name"));
+
+        loader.users = users(50);
+        cache.refresh();
+        gen = cache.generation();
+        assertNotNull(gen.getMapping("city"));
+        assertNotNull(gen.getMapping("age"));
+        assertEquals(5, cache.getMappingValues("city", "city3").size());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testPartitionedLoad() {
+        PartitionedLoader loader = new PartitionedLoader(users(10000), 8);
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().indexFields("city").concurrencyLevel(4)
+                .loadParallelism(3).build(loader, new TypeReference<User>() {});
+
+        assertEquals(10000, cache.size());
+        assertNotNull(cache.generation().getMapping("city"));
+        assertEquals(1000, cache.getMappingValues("city", "city3").size());
+        assertEquals(1, cache.getMappingValues("id", 1234L).size());
+
+        loader.users = users(5000);
+        cache.refresh();
+        assertEquals(5000, cache.size());
+        assertEquals(500, cache.getMappingValues("city", "city3").size());
+
+        loader.failing = true;
+        loader.users = users(100);
+        cache.refresh();
+        // 任一分区失败时保留旧的数据
+        assertEquals(5000, cache.size());
+    }
+
+    @Test
+    public void testPartitionedRefreshOnBoundedExecutor() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        PartitionedLoader loader = new PartitionedLoader(users(100), 2);
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().refreshExecutor(executor)
+                .build(loader, new TypeReference<User>() {});
+
+        loader.users = users(50);
+        cache.refreshAsync().get(3, TimeUnit.SECONDS);
+        assertEquals(50, cache.size());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testStreamingLoad() {
+        AtomicInteger rows = new AtomicInteger(1000);
+        CacheLoader<User> loader = new CacheLoader<User>() {
+            @Override
+            public List<User> load() {
+                throw new AssertionError("load() should not be called");
+            }
+
+            @Override
+            public boolean isStreaming() {
+                return true;
+            }
+
+            @Override
+            public void load(Consumer<? super User> consumer) {
+                int n = rows.get();
+                for (int i = 0; i < n; ++i) {
+                    consumer.accept(new User(i, "user" + i, "city" + (i % 10), i % 60));
+                }
+            }
+        };
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().indexFields("city").concurrencyLevel(3)
+                .build(loader, new TypeReference<User>() {});
+
+        assertEquals(1000, cache.size());
+        assertNotNull(cache.generation().getMapping("city"));
+        assertEquals(100, cache.getMappingValues("city", "city3").size());
+
+        rows.set(500);
+        cache.refresh();
+        assertEquals(500, cache.size());
+        assertEquals(50, cache.getMappingValues("city", "city3").size());
+        assertEquals(1, cache.getMappingValues("id", 42L).size());
+    }
+
+    @Test
+    public void testConjunctiveQuery() {
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").concurrencyLevel(2)
+                .build(new UserLoader(users(1000)), new TypeReference<User>() {});
+
+        Map<String, Object> conditions = new HashMap<>();
+        conditions.put("city", "city3");
+        conditions.put("age", 3);
+        List<User> result = cache.getMappingValues(conditions);
+        assertEquals(17, result.size());
+        for (User user : result) {
+            assertEquals(3, user.getId() % 60);
+        }
+
+        conditions.put("age", 14);
+        assertTrue(cache.getMappingValues(conditions).isEmpty());
+        conditions.put("name", "user13");
+        conditions.put("age", 13);
+        assertEquals(1, cache.getMappingValues(conditions).size());
+
+        cache.put(new User(13, "user13", "city4", 13));
+        assertTrue(cache.getMappingValues(conditions).isEmpty());
+        conditions.put("city", "city4");
+        assertEquals(1, cache.getMappingValues(conditions).size());
+
+        assertEquals(1000, cache.getMappingValues(Collections.emptyMap()).size());
+        assertEquals(100, cache.getMappingValues(Collections.singletonMap("city", "city5")).size());
+    }
+
+    @Test
+    public void testRangeQuery() {
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").sortedFields("age", "id")
+                .concurrencyLevel(3).build(new UserLoader(users(600)), new TypeReference<User>() {});
+
+        assertEquals(100, cache.getRangeValues("age", 10, 19).size());
+        assertEquals(80, cache.getRangeValues("age", 10, false, 19, false).size());
+        assertEquals(30, cache.getRangeValues("age", null, 2).size());
+        assertEquals(20, cache.getRangeValues("age", 58, null).size());
+        assertTrue(cache.getRangeValues("age", 20, 10).isEmpty());
+        try {
+            cache.getRangeValues("city", "city1", "city3");
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // city不是有序字段
+        }
+        assertEquals(10, cache.getMappingValues("age", 5).size());
+        // 类型不同的字段值与哈希映射一样没有对应的记录
+        assertTrue(cache.getMappingValues("id", 5).isEmpty());
+        assertTrue(cache.getRangeValues("id", 5, 10).isEmpty());
+        assertTrue(cache.getRangeValues("age", 5L, null).isEmpty());
+        assertEquals(Integer.valueOf(0), cache.min("age"));
+        assertEquals(Integer.valueOf(59), cache.max("age"));
+        assertEquals(Long.valueOf(599), cache.max("id"));
+
+        cache.remove(new User(599, null, null, 0));
+        cache.put(new User(1000, "user1000", "city0", 70));
+        assertEquals(Long.valueOf(1000), cache.max("id"));
+        assertEquals(Integer.valueOf(70), cache.max("age"));
+        assertEquals(1, cache.getRangeValues("age", 60, null).size());
+        assertEquals(9, cache.getRangeValues("age", 59, 59).size());
+    }
+
+    @Test
+    public void testCompositeIndex() {
+        UserLoader loader = new UserLoader(users(1200));
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").compositeIndex("city", "age")
+                .concurrencyLevel(2).build(loader, new TypeReference<User>() {});
+        assertNotNull(cache.generation().getMapping("city,age"));
+
+        Map<String, Object> conditions = new HashMap<>();
+        conditions.put("age", 3);
+        conditions.put("city", "city3");
+        assertEquals(20, cache.getMappingValues(conditions).size());
+        // 组合索引之外的条件逐一校验
+        conditions.put("name", "user63");
+        assertEquals(1, cache.getMappingValues(conditions).size());
+        // 没有使用过的单字段映射不会被构建
+        assertNull(cache.generation().getMapping("city"));
+
+        conditions.remove("name");
+        cache.put(new User(5000, "new", "city3", 3));
+        cache.remove(new User(3, null, null, 0));
+        assertEquals(20, cache.getMappingValues(conditions).size());
+
+        loader.users = users(600);
+        cache.refresh();
+        assertNotNull(cache.generation().getMapping("city,age"));
+        assertEquals(10, cache.getMappingValues(conditions).size());
+    }
+
+    @Test
+    public void testOrderedQuery() {
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").sortedFields("age")
+                .concurrencyLevel(3).build(new UserLoader(users(600)), new TypeReference<User>() {});
+
+        List<User> page = cache.getOrderedValues(Collections.emptyMap(), "age", true, 0, 15);
+        assertEquals(15, page.size());
+        for (int i = 0; i < 15; ++i) {
+            assertEquals(i < 10 ? 0 : 1, page.get(i).getAge());
+        }
+        page = cache.getOrderedValues(Collections.emptyMap(), "age", false, 5, 10);
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(i < 5 ? 59 : 58, page.get(i).getAge());
+        }
+
+        Map<String, Object> conditions = new HashMap<>();
+        conditions.put("city", "city3");
+        page = cache.getOrderedValues(conditions, "age", true, 0, 5);
+        assertEquals(5, page.size());
+        for (User user : page) {
+            assertEquals(3, user.getAge());
+        }
+        page = cache.getOrderedValues(conditions, "age", true, 50, 100);
+        assertEquals(10, page.size());
+        assertEquals(53, page.get(0).getAge());
+        page = cache.getOrderedValues(conditions, "id", false, 1, 3);
+        assertEquals(Arrays.asList(583L, 573L, 563L), Arrays.asList(page.get(0).getId(), page.get(1).getId(),
+                page.get(2).getId()));
+        assertTrue(cache.getOrderedValues(conditions, "id", false, 60, 3).isEmpty());
+
+        cache.put(new User(1000, null, "city3", 3));
+        conditions.put("age", 3);
+        page = cache.getOrderedValues(conditions, "name", true, 0, 20);
+        assertEquals(11, page.size());
+        assertNull(page.get(10).getName());
+        assertEquals("user123", page.get(0).getName());
+    }
+
+    @Test
+    public void testAggregates() {
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").concurrencyLevel(2)
+                .build(new UserLoader(users(600)), new TypeReference<User>() {});
+
+        assertEquals(600, cache.count("city"));
+        assertEquals(120, cache.count("city", "city3", "city4"));
+        assertEquals(0, cache.count("city", "nowhere"));
+        Map<String, Object> conditions = new HashMap<>();
+        conditions.put("city", "city3");
+        conditions.put("age", 13);
+        assertEquals(10, cache.count(conditions));
+
+        Map<String, Integer> byCity = cache.countBy("city");
+        assertEquals(10, byCity.size());
+        assertEquals(Integer.valueOf(60), byCity.get("city7"));
+        Set<Integer> ages = cache.distinctKeys("age");
+        assertEquals(60, ages.size());
+
+        // 13 + 73 + ... + 553
+        assertEquals(2830L, cache.sum("id", conditions));
+        assertEquals(130L, cache.sum("age", conditions));
+        assertEquals(Long.valueOf(13), cache.min("id", conditions));
+        assertEquals(Long.valueOf(553), cache.max("id", conditions));
+        assertEquals(Integer.valueOf(59), cache.max("age"));
+        assertEquals("user99", cache.max("name"));
+
+        cache.remove(new User(553, null, null, 0));
+        assertEquals(9, cache.count(conditions));
+        assertEquals(Long.valueOf(493), cache.max("id", conditions));
+        for (int i = 0; i < 600; i += 60) {
+            cache.remove(new User(i, null, null, 0));
+        }
+        assertFalse(cache.distinctKeys("age").contains(0));
+        assertFalse(cache.countBy("age").containsKey(0));
+    }
+
+    @Test
+    public void testQueryPlanner() {
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").sortedFields("age")
+                .indexFields("city").concurrencyLevel(2).build(new UserLoader(users(600)), new TypeReference<User>() {});
+
+        Query<User> query = cache.query().in("city", "city3", "city4").where(Condition.between("age", 10, 19));
+        assertEquals(20, query.list().size());
+        assertEquals(20, query.count());
+        // city的条件估计为120条，age的范围估计为100条，从age的范围开始
+        assertTrue(query.explain(), query.explain().startsWith("Filter(city in [city3, city4]) estimate=100\n"
+                + "  RangeScan(age in [10, 19]) estimate=100"));
+
+        query = cache.query().where(Condition.or(Condition.eq("city", "city3"), Condition.lt("age", 3)));
+        // city3有60条，age < 3有30条，city3的age个位数都是3，两者没有重合
+        assertEquals(90, query.count());
+        assertTrue(query.explain(), query.explain().startsWith("Union"));
+
+        query = cache.query().where(Condition.or(Condition.eq("city", "city3"), Condition.eq("age", 3)));
+        assertEquals(60, query.count());
+
+        query = cache.query().not(Condition.eq("city", "city3"));
+        assertEquals(540, query.count());
+        assertTrue(query.explain(), query.explain().startsWith("Scan(not (city = city3)) estimate=600"));
+
+        query = cache.query().eq("city", "city3").not(Condition.in("age", 3, 13));
+        assertEquals(40, query.list().size());
+        assertEquals(600, cache.query().count());
+        assertTrue(cache.query().eq("city", "nowhere").eq("age", 3).list().isEmpty());
+
+        cache.put(new User(1000, "new", "city3", 15));
+        assertEquals(1, cache.query().eq("city", "city3").range("age", 14, true, 16, false).count());
+
+        // 没有构建也没有声明映射的字段作为过滤条件，生成计划不会构建映射
+        query = cache.query().eq("name", "user3");
+        assertTrue(query.explain(), query.explain().startsWith("Scan"));
+        assertEquals(1, query.count());
+        assertNull(cache.generation().getMapping("name"));
+
+        // 类型不匹配的范围边界在遍历以及有序映射上都视为不满足条件
+        assertEquals(0, cache.query().where(Condition.between("name", 1, 2)).count());
+        assertEquals(0, cache.query().where(Condition.between("age", "a", "b")).count());
+    }
+
+    @Test
+    public void testStreamingResults() {
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").concurrencyLevel(3)
+                .build(new UserLoader(users(30000)), new TypeReference<User>() {});
+
+        AtomicInteger n = new AtomicInteger();
+        cache.forEachMatch("city", user -> n.incrementAndGet(), "city3", "city4");
+        assertEquals(6000, n.get());
+        cache.forEachMatch(null, user -> n.incrementAndGet());
+        assertEquals(36000, n.get());
+
+        Iterator<User> it = cache.iterator("city", "city3");
+        cache.remove(new User(3, null, null, 0));
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals("city3", it.next().getCity());
+            ++count;
+        }
+        // 迭代器创建之后的修改不可见
+        assertEquals(3000, count);
+        assertFalse(cache.iterator("city", "nowhere").hasNext());
+
+        assertEquals(2999, cache.stream("city", "city3").count());
+        assertEquals(29999, cache.stream(null).parallel().count());
+        assertEquals(29999, cache.stream(null).parallel().mapToLong(User::getId).distinct().count());
+        assertEquals(500, cache.stream("age", 7).parallel().filter(user -> user.getCity().equals("city7")).count());
+    }
+
+    @Test
+    public void testBatchLookup() {
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").concurrencyLevel(2)
+                .build(new UserLoader(users(20000)), new TypeReference<User>() {});
+
+        Map<String, List<User>> byCity = cache.batchGetMappingValues("city", Arrays.asList("city4", "nowhere", "city1"));
+        assertEquals(Arrays.asList("city4", "city1"), new ArrayList<>(byCity.keySet()));
+        assertEquals(2000, byCity.get("city4").size());
+        for (User user : byCity.get("city1")) {
+            assertEquals("city1", user.getCity());
+        }
+
+        List<Long> ids = new ArrayList<>();
+        for (long i = 0; i < 10000; ++i) {
+            ids.add(i * 2);
+        }
+        cache.remove(new User(0, null, null, 0));
+        Map<Long, List<User>> byId = cache.batchGetMappingValues("id", ids);
+        assertEquals(9999, byId.size());
+        assertEquals(Long.valueOf(2), byId.keySet().iterator().next());
+        assertEquals(19998L, byId.get(19998L).get(0).getId());
+        assertTrue(cache.batchGetMappingValues("id", Collections.singleton(-1L)).isEmpty());
+    }
+
+    @Test
+    public void testUniqueIndex() throws Exception {
+        List<User> users = users(100);
+        users.add(new User(100, "user5", "city0", 0));
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").unique("name")
+                .build(new UserLoader(users), new TypeReference<User>() {});
+
+        // 重复的字段值只保留一个
+        assertEquals(101, cache.size());
+        assertNotNull(cache.get("user5"));
+        assertEquals(7L, cache.get("user7").getId());
+        assertNull(cache.get("nobody"));
+        assertNull(cache.get(null));
+
+        cache.put(new User(7, "renamed", "city7", 7));
+        assertNull(cache.get("user7"));
+        assertEquals(7L, cache.get("renamed").getId());
+        try {
+            cache.put(new User(8, "renamed", "city8", 8));
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // 与其他条目重复
+        }
+        assertEquals("user8", cache.getMappingValues("id", 8L).get(0).getName());
+        assertTrue(cache.remove(new User(7, null, null, 0)));
+        assertNull(cache.get("renamed"));
+        cache.put(new User(8, "renamed", "city8", 8));
+        assertEquals(8L, cache.get("renamed").getId());
+
+        // 替换过程中查询总是能得到旧值或者新值
+        cache.put(new User(1, "fixed", "city1", 1));
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            try {
+                while (done.getCount() > 0) {
+                    User user = cache.get("fixed");
+                    if (user == null || user.getId() != 1) {
+                        throw new AssertionError("unexpected " + user);
+                    }
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 20000; ++i) {
+            cache.put(new User(1, "fixed", "city" + i, i % 60));
+        }
+        done.countDown();
+        reader.join();
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testFieldIndex() throws Exception {
+        UserLoader loader = new UserLoader(users(100));
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").concurrencyLevel(2)
+                .build(loader, new TypeReference<User>() {});
+
+        FieldIndex<User, String> city = cache.index("city");
+        assertEquals(10, city.get("city3").size());
+        assertTrue(city.contains("city3"));
+        assertFalse(city.contains("nowhere"));
+        assertTrue(city.get("nowhere").isEmpty());
+
+        cache.put(new User(1000, "new", "city3", 0));
+        assertEquals(11, city.count("city3"));
+
+        loader.users = users(50);
+        cache.refresh();
+        assertEquals(5, city.get("city3").size());
+
+        // 闲置的句柄不会阻止旧的一代被回收
+        WeakReference<Generation<User>> old = new WeakReference<>(cache.generation());
+        loader.users = users(40);
+        cache.refresh();
+        for (int i = 0; i < 50 && old.get() != null; ++i) {
+            System.gc();
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertNull(old.get());
+        assertEquals(4, city.get("city3").size());
+        try {
+            cache.index("nothing");
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // 字段不存在
+        }
+    }
+
+    @Test
+    public void testScan() {
+        MultiDimensionCache<User> small = newCache(new UserLoader(users(100)));
+        assertEquals(10, small.scan(user -> user.getName().endsWith("7")).size());
+        assertEquals(3, small.scan(user -> user.getAge() > 50, 3).size());
+        assertEquals(10, small.<String>scan("city", city -> city.equals("city3")).size());
+        assertTrue(small.scan(user -> false).isEmpty());
+        try {
+            small.scan(user -> true).clear();
+            fail();
+        } catch (UnsupportedOperationException expected) {
+            // 与其他查询一样返回不可修改的结果
+        }
+
+        MultiDimensionCache<User> large = CacheBuilder.newBuilder().identity("id").concurrencyLevel(4)
+                .build(new UserLoader(users(20000)), new TypeReference<User>() {});
+        assertEquals(2000, large.<String>scan("city", city -> city.equals("city3")).size());
+        List<User> limited = large.scan(user -> user.getAge() == 7, 5);
+        assertEquals(5, limited.size());
+        for (User user : limited) {
+            assertEquals(7, user.getAge());
+        }
+        assertTrue(large.remove(new User(7, "user7", "city7", 7)));
+        assertEquals(0, large.scan(user -> user.getId() == 7L).size());
+    }
+
+    @Test
+    public void testPrefixIndex() {
+        UserLoader loader = new UserLoader(users(200));
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").concurrencyLevel(3)
+                .prefixIndex("name").prefixIndex("city", true)
+                .build(loader, new TypeReference<User>() {});
+
+        // user1, user10 - user19, user100 - user199
+        assertEquals(111, cache.getPrefixValues("name", "user1").size());
+        List<User> first = cache.getPrefixValues("name", "user1", 3);
+        assertEquals(3, first.size());
+        assertEquals("user1", first.get(0).getName());
+        assertEquals("user10", first.get(1).getName());
+        assertEquals("user100", first.get(2).getName());
+        assertTrue(cache.getPrefixValues("name", "USER1").isEmpty());
+        assertEquals(20, cache.getPrefixValues("city", "CITY3").size());
+
+        cache.put(new User(1000, "user1x", "City3", 0));
+        assertEquals(21, cache.getPrefixValues("city", "city3").size());
+        assertEquals("user1x", cache.getPrefixValues("name", "user1x", 1).get(0).getName());
+
+        loader.users = users(20);
+        cache.refresh();
+        assertEquals(11, cache.getPrefixValues("name", "user1").size());
+        try {
+            cache.getPrefixValues("age", "1");
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // 没有声明前缀索引
+        }
+    }
+
+    @Test
+    public void testDerivedIndex() {
+        UserLoader loader = new UserLoader(users(100));
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").concurrencyLevel(2)
+                .derivedIndex("ageBucket", (User user) -> user.getAge() / 10)
+                .build(loader, new TypeReference<User>() {});
+
+        // age = i % 60，每个区间10个年龄
+        assertEquals(20, cache.getMappingValues("ageBucket", 0).size());
+        assertEquals(30, cache.getMappingValues("ageBucket", 1, 5).size());
+        Map<String, Object> conditions = new HashMap<>();
+        conditions.put("ageBucket", 0);
+        conditions.put("city", "city3");
+        assertEquals(2, cache.getMappingValues(conditions).size());
+        assertEquals(20, cache.query().eq("ageBucket", 2).count());
+        assertEquals(20, cache.<Integer>index("ageBucket").count(2));
+
+        cache.put(new User(1000, "new", "city3", 5));
+        assertEquals(21, cache.getMappingValues("ageBucket", 0).size());
+        loader.users = users(10);
+        cache.refresh();
+        assertEquals(10, cache.getMappingValues("ageBucket", 0).size());
+        try {
+            CacheBuilder.newBuilder().derivedIndex("age", (User user) -> user.getAge())
+                    .build(loader, new TypeReference<User>() {});
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // 与字段名称冲突
+        }
+    }
+
+    @Test
+    public void testResultCache() throws Exception {
+        UserLoader loader = new UserLoader(users(100));
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").concurrencyLevel(2)
+                .resultCacheSize(2).build(loader, new TypeReference<User>() {});
+
+        List<User> first = cache.getMappingValues("city", "city3", "city4");
+        assertEquals(20, first.size());
+        assertTrue(first == cache.getMappingValues("city", "city3", "city4"));
+        assertEquals(30, cache.getMappingValues("city", "city4", "city4", "city5").size());
+        cache.getMappingValues("city", "city6");
+        assertEquals(20, cache.getMappingValues("city", "city3", "city4").size());
+
+        cache.put(new User(1000, "new", "city3", 0));
+        List<User> updated = cache.getMappingValues("city", "city3", "city4");
+        assertEquals(21, updated.size());
+        assertTrue(updated == cache.getMappingValues("city", "city3", "city4"));
+
+        loader.users = users(50);
+        cache.refresh();
+        assertEquals(10, cache.getMappingValues("city", "city3", "city4").size());
+
+        MultiDimensionCache<User> expiring = CacheBuilder.newBuilder().resultCacheSize(16)
+                .expireAfterWrite(50, TimeUnit.MILLISECONDS).build(loader, new TypeReference<User>() {});
+        assertEquals(5, expiring.getMappingValues("city", "city3").size());
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertTrue(expiring.getMappingValues("city", "city3").isEmpty());
+    }
+
+    @Test
+    public void testSubscribe() {
+        UserLoader loader = new UserLoader(users(100));
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().identity("id").concurrencyLevel(2)
+                .notificationExecutor(Runnable::run).build(loader, new TypeReference<User>() {});
+
+        List<ChangeEvent<User>> cityEvents = new ArrayList<>();
+        List<ChangeEvent<User>> ageEvents = new ArrayList<>();
+        Subscription<User> city = cache.subscribe("city", "city3", cityEvents::add);
+        cache.subscribe(user -> user.getAge() >= 55, ageEvents::add);
+
+        cache.put(new User(1000, "new", "city3", 1));
+        assertEquals(1, cityEvents.size());
+        assertEquals(1000L, cityEvents.get(0).getAdded().get(0).getId());
+        assertTrue(ageEvents.isEmpty());
+
+        cache.put(new User(3, "renamed", "city3", 56));
+        assertEquals(2, cityEvents.size());
+        assertEquals("renamed", cityEvents.get(1).getChanged().get(0).getName());
+        assertEquals("user3", cityEvents.get(1).getPrevious().get(0).getName());
+        assertEquals(3L, ageEvents.get(0).getAdded().get(0).getId());
+
+        // 全量刷新后保留的记录中只有值不相等的记录是修改的记录
+        loader.users = users(50);
+        cache.refresh();
+        ChangeEvent<User> refreshed = cityEvents.get(2);
+        assertEquals(6, refreshed.getRemoved().size());
+        assertEquals(1, refreshed.getChanged().size());
+        assertEquals("user3", refreshed.getChanged().get(0).getName());
+        assertTrue(refreshed.getAdded().isEmpty());
+
+        city.cancel();
+        cache.remove(new User(13, "user13", "city3", 13));
+        assertEquals(3, cityEvents.size());
+    }
+
+    @Test
+    public void testSubscribeEvaluatesOnlyChanges() {
+        UserLoader loader = new UserLoader(users(100));
+        MultiDimensionCache<User> cache = CacheBuilder.newBuilder().notificationExecutor(Runnable::run)
+                .build(loader, new TypeReference<User>() {});
+        AtomicInteger tests = new AtomicInteger();
+        List<ChangeEvent<User>> events = new ArrayList<>();
+        cache.subscribe(user -> {
+            tests.incrementAndGet();
+            return user.getCity().equals("city3");
+        }, events::add);
+        assertEquals(100, tests.get());
+
+        // 写入只对变化的记录判断条件
+        cache.put(new User(1000, "new", "city3", 1));
+        assertEquals(101, tests.get());
+        assertEquals(1, events.size());
+
+        // 没有声明标识字段时以值本身匹配记录，全量刷新后内容相同的记录不会被通知
+        loader.users = users(100);
+        cache.refresh();
+        assertEquals(2, events.size());
+        assertEquals(1000L, events.get(1).getRemoved().get(0).getId());
+        assertTrue(events.get(1).getAdded().isEmpty());
+        assertTrue(events.get(1).getChanged().isEmpty());
+    }
+
+    static MultiDimensionCache<User> newCache(CacheLoader<User> loader) {
+        return CacheBuilder.newBuilder().build(loader, new TypeReference<User>() {});
+    }
+
+    static List<User> users(int n) {
+        List<User> users = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            users.add(new User(i, "user" + i, "city" + (i % 10), i % 60));
+        }
+        return users;
+    }
+
+    static class UserLoader extends CacheLoader<User> {
+        volatile List<User> users;
+        volatile CacheChanges<User> changes;
+        volatile long watermark;
+
+        UserLoader(List<User> users) {
+            this.users = users;
+        }
+
+        @Override
+        public List<User> load() {
+            return users;
+        }
+
+        @Override
+        public CacheChanges<User> loadChanges(long watermark) {
+            this.watermark = watermark;
+            return changes;
+        }
+    }
+
+    static class PartitionedLoader extends CacheLoader<User> {
+        volatile List<User> users;
+        volatile boolean failing;
+        final int partitions;
+
+        PartitionedLoader(List<User> users, int partitions) {
+            this.users = users;
+            this.partitions = partitions;
+        }
+
+        @Override
+        public List<User> load() {
+            throw new AssertionError("load() should not be called");
+        }
+
+        @Override
+        public int partitions() {
+            return partitions;
+        }
+
+        @Override
+        public List<User> load(int partition) {
+            if (failing && partition == partitions - 1) {
+                throw new IllegalStateException("partition " + partition);
+            }
+            List<User> list = users;
+            int size = (list.size() + partitions - 1) / partitions;
+            int from = Math.min(partition * size, list.size());
+            return list.subList(from, Math.min(from + size, list.size()));
+        }
+    }
+
+    /**
+     * 字段数超过64的类型，f70的getter会记录调用次数
+     */
+    static class WideUser {
+        private long f0, f1, f2, f3, f4, f5, f6, f7, f8, f9;
+        private long f10, f11, f12, f13, f14, f15, f16, f17, f18, f19;
+        private long f20, f21, f22, f23, f24, f25, f26, f27, f28, f29;
+        private long f30, f31, f32, f33, f34, f35, f36, f37, f38, f39;
+        private long f40, f41, f42, f43, f44, f45, f46, f47, f48, f49;
+        private long f50, f51, f52, f53, f54, f55, f56, f57, f58, f59;
+        private long f60, f61, f62, f63, f64, f65, f66, f67, f68, f69;
+        private long f70;
+        private AtomicInteger invocations;
+
+        WideUser(long f70, AtomicInteger invocations) {
+            this.f70 = f70;
+            this.invocations = invocations;
+        }
+
+        public long getF70() {
+            invocations.incrementAndGet();
+            return f70;
+        }
+    }
+
+    static class User {
+        private long id;
+        private String name;
+        private String city;
+        private int age;
+
+        User(long id, String name, String city, int age) {
+            this.id = id;
+            this.name = name;
+            this.city = city;
+            this.age = age;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getCity() {
+            return city;
+        }
+
+        public int getAge() {
+            return age;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof User)) {
+                return false;
+            }
+            User other = (User) o;
+            return id == other.id && age == other.age && Objects.equals(name, other.name)
+                    && Objects.equals(city, other.city);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, name, city, age);
+        }
+
+        @Override
+        public String toString() {
+            return "User{id=" + id + ", name=" + name + ", city=" + city + ", age=" + age + "}";
+        }
+    }
+}